@@ -0,0 +1,28 @@
+package com.example.android.quakereport;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts the {@link AlertRuleBenchmark} in debug builds. The report is written to logcat:
+ *
+ * adb shell am broadcast -a com.example.android.quakereport.ALERT_BENCHMARK \
+ *     --ei rules 10000 --ei events 20000
+ */
+public class AlertBenchmarkReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final int rules = intent.getIntExtra("rules", 10000);
+        final int events = intent.getIntExtra("events", 20000);
+
+        // The benchmark takes far longer than a receiver may run
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AlertRuleBenchmark.run(rules, events);
+            }
+        }, "AlertBenchmark").start();
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the {@link AlertRuleEngine} with checking every rule against every event,
+ * on random rules and earthquakes, and checks both find the same matches.
+ *
+ * Started from adb through {@link AlertBenchmarkReceiver}. This is on a background thread.
+ */
+public class AlertRuleBenchmark {
+
+    private static final String LOG_TAG = AlertRuleBenchmark.class.getSimpleName();
+
+    /* Fraction of the rules that match anywhere */
+    private static final double GLOBAL_RULE_FRACTION = 0.05;
+
+    /**
+     * Runs the benchmark and returns its report
+     */
+    public static String run(int ruleCount, int eventCount) {
+        Random random = new Random(42);
+        List<AlertRule> rules = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            double minMagnitude = 3 + random.nextInt(50) / 10.0;
+            if (random.nextDouble() < GLOBAL_RULE_FRACTION) {
+                rules.add(new AlertRule("rule" + i, minMagnitude + 2));
+            } else {
+                rules.add(new AlertRule("rule" + i, minMagnitude,
+                        random.nextDouble() * 140 - 70, random.nextDouble() * 360 - 180,
+                        50 + random.nextInt(950)));
+            }
+        }
+        List<Earthquake> earthquakes = new ArrayList<>();
+        for (int i = 0; i < eventCount; i++) {
+            earthquakes.add(new Earthquake(2 + random.nextDouble() * 6, "event" + i, i,
+                    "stub" + i, random.nextDouble() * 160 - 80, random.nextDouble() * 360 - 180));
+        }
+
+        long start = System.nanoTime();
+        AlertRuleEngine engine = new AlertRuleEngine(rules);
+        long compileNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<AlertRuleEngine.Alert> alerts = engine.evaluate(earthquakes, new HashSet<String>());
+        long indexedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int naiveAlerts = 0;
+        for (Earthquake earthquake : earthquakes) {
+            for (AlertRule rule : rules) {
+                if (earthquake.getmMagnitude() >= rule.getmMinMagnitude() && (rule.isGlobal()
+                        || AlertRuleEngine.distanceKm(rule.getmLatitude(), rule.getmLongitude(),
+                        earthquake.getmLatitude(), earthquake.getmLongitude()) <= rule.getmRadiusKm())) {
+                    naiveAlerts++;
+                    break;
+                }
+            }
+        }
+        long naiveNanos = System.nanoTime() - start;
+
+        String report = "rules=" + ruleCount
+                + " events=" + eventCount
+                + " compileMillis=" + compileNanos / 1000000
+                + " indexedMillis=" + indexedNanos / 1000000
+                + " naiveMillis=" + naiveNanos / 1000000
+                + " alerts=" + alerts.size()
+                + " naiveAlerts=" + naiveAlerts;
+        if (alerts.size() != naiveAlerts) {
+            Log.e(LOG_TAG, "Engine and naive check disagree: " + report);
+        }
+        Log.i(LOG_TAG, report);
+        return report;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the USGS response formats on the same events served by a
+ * {@link StubUsgsServer}: bytes on the wire, time to download and time to decode.
+ * Each format is fetched and decoded once to warm up, then the medians of the
+ * following rounds are reported. The responses are not recorded by the
+ * {@link EarthquakeFormatChooser}, loopback numbers would mislead it.
+ *
+ * Started from adb through {@link LoadTestReceiver}. This is on a background thread.
+ */
+public class DecoderBenchmark {
+
+    private static final String LOG_TAG = DecoderBenchmark.class.getSimpleName();
+
+    /* Formats compared, in the order they are reported */
+    private static final String[] FORMATS = {
+            GeoJsonEarthquakeDecoder.FORMAT, CsvEarthquakeDecoder.FORMAT};
+
+    /**
+     * Runs the benchmark and returns its report
+     *
+     * @param server behaviour of the stub server, like its bandwidth cap
+     * @param rounds number of measured requests per format
+     */
+    public static String run(Context context, StubUsgsServer.Config server, int rounds)
+            throws IOException, JSONException {
+        StubUsgsServer stub = new StubUsgsServer(LoadTestHarness.readFixture(context), server);
+        stub.start();
+        StringBuilder report = new StringBuilder("features=" + server.featureCount
+                + " bandwidth=" + server.bytesPerSecond + " latency=" + server.latencyMillis);
+        try {
+            for (String format : FORMATS) {
+                String url = stub.getUrl() + "?format=" + format
+                        + "&limit=" + server.featureCount;
+                EarthquakeDecoder decoder = QueryUtils.getDecoder(format);
+                Measurement measurement = new Measurement();
+                long[] networkMillis = new long[rounds];
+                long[] decodeMillis = new long[rounds];
+                for (int round = -1; round < rounds; round++) {
+                    if (QueryUtils.fetchEarthquakeData(url, decoder, measurement) == null) {
+                        throw new IOException("Request for " + format + " failed");
+                    }
+                    if (round < 0) {
+                        // Warm up run
+                        continue;
+                    }
+                    networkMillis[round] = measurement.mNetworkMillis;
+                    decodeMillis[round] = measurement.mDecodeMillis;
+                }
+                long bytes = measurement.mBytes;
+                int events = measurement.mEvents;
+                report.append('\n').append(format)
+                        .append(": bytes=").append(bytes)
+                        .append(" bytesPerEvent=").append(events == 0 ? 0 : bytes / events)
+                        .append(" events=").append(events)
+                        .append(" networkMillis=").append(median(networkMillis))
+                        .append(" decodeMillis=").append(median(decodeMillis));
+            }
+        } finally {
+            stub.stop();
+        }
+        Log.i(LOG_TAG, report.toString());
+        return report.toString();
+    }
+
+    /* Keeps the measurements of the last response instead of recording them */
+    private static class Measurement implements QueryUtils.ResponseListener {
+        long mBytes;
+        long mNetworkMillis;
+        long mDecodeMillis;
+        int mEvents;
+
+        @Override
+        public void onResponse(String format, long bytes, long networkMillis,
+                               long decodeMillis, int events) {
+            mBytes = bytes;
+            mNetworkMillis = networkMillis;
+            mDecodeMillis = decodeMillis;
+            mEvents = events;
+        }
+    }
+
+    private static long median(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
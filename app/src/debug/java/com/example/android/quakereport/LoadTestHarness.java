@@ -0,0 +1,343 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Drives the fetch pipeline (request, read and decode, as in
+ * {@link QueryUtils#fetchEarthquakeData(String)}) against a {@link StubUsgsServer} and
+ * reports throughput, latency percentiles, peak heap and peak thread count. The
+ * responses are not recorded by the {@link EarthquakeFormatChooser}, loopback numbers
+ * would mislead it.
+ *
+ * {@link #runTransportBenchmark(int, long)} compares a blocking HttpURLConnection per
+ * query with the {@link HttpTransport} event loop for a burst of queries started at once.
+ *
+ * Started from adb through {@link LoadTestReceiver}. This is on a background thread.
+ */
+public class LoadTestHarness {
+
+    private static final String LOG_TAG = LoadTestHarness.class.getSimpleName();
+
+    /* Recorded USGS response replayed by the stub server */
+    private static final String FIXTURE = "fixtures/usgs_query.geojson";
+
+    /* How often the used heap and the thread count are sampled */
+    private static final long SAMPLE_MILLIS = 10;
+
+    /**
+     * Shape of the load
+     */
+    public static class Config {
+
+        /* Total number of queries */
+        public int requests = 20;
+
+        /* Number of queries in flight at the same time */
+        public int concurrency = 1;
+
+        /* Start the queries without a thread of their own, the HttpTransport multiplexes
+         * them. A new query starts when the oldest in flight is done. */
+        public boolean async = false;
+
+        /* Make each query of a blocking run with an HttpURLConnection of its own instead of
+         * through the HttpTransport, like the app did before, as a baseline */
+        public boolean urlConnection = false;
+
+        /* Behaviour of the stub server */
+        public StubUsgsServer.Config server = new StubUsgsServer.Config();
+    }
+
+    /**
+     * Results of a run
+     */
+    public static class Report {
+        public int requests;
+        public int failures;
+        public long bytes;
+        public long totalMillis;
+        public long p50Millis;
+        public long p99Millis;
+        public long peakHeapBytes;
+        public int peakThreads;
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(totalMillis, 1) / 1000.0;
+            return "requests=" + requests
+                    + " failures=" + failures
+                    + " totalMillis=" + totalMillis
+                    + " requestsPerSecond=" + String.format("%.1f", requests / seconds)
+                    + " megabytesPerSecond=" + String.format("%.2f", bytes / seconds / 1e6)
+                    + " p50Millis=" + p50Millis
+                    + " p99Millis=" + p99Millis
+                    + " peakHeapMegabytes=" + String.format("%.1f", peakHeapBytes / 1e6)
+                    + " peakThreads=" + peakThreads;
+        }
+    }
+
+    private final Context mContext;
+
+    public LoadTestHarness(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Runs the load test and returns its report
+     */
+    public Report run(final Config config) throws IOException, JSONException {
+        StubUsgsServer server = new StubUsgsServer(readFixture(mContext), config.server);
+        server.start();
+        final String url = server.getUrl() + "?format=geojson&limit=" + config.server.featureCount;
+        final EarthquakeDecoder decoder = new GeoJsonEarthquakeDecoder();
+        final int expected = config.server.featureCount;
+
+        Sampler sampler = new Sampler();
+        sampler.start();
+
+        // Each query writes only its own entries, through its QueryRecorder
+        final long[] latencies = new long[config.requests];
+        final long[] bytes = new long[config.requests];
+        final boolean[] failed = new boolean[config.requests];
+        long start = SystemClock.elapsedRealtime();
+
+        List<Future<List<Earthquake>>> futures = new ArrayList<>();
+        ExecutorService executor = null;
+        if (!config.async) {
+            executor = Executors.newFixedThreadPool(config.concurrency);
+        }
+        for (int i = 0; i < config.requests; i++) {
+            if (config.async && i >= config.concurrency) {
+                // Wait for the oldest query in flight before starting another
+                try {
+                    futures.get(i - config.concurrency).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // Counted as a failure below
+                }
+            }
+            final QueryRecorder recorder = new QueryRecorder(latencies, bytes, i);
+            if (config.async) {
+                futures.add(QueryUtils.fetchEarthquakeDataAsync(url, recorder));
+            } else {
+                futures.add(executor.submit(new Callable<List<Earthquake>>() {
+                    @Override
+                    public List<Earthquake> call() throws IOException {
+                        return config.urlConnection
+                                ? fetchWithUrlConnection(url, decoder, recorder)
+                                : QueryUtils.fetchEarthquakeData(url, decoder, recorder);
+                    }
+                }));
+            }
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                List<Earthquake> earthquakes = futures.get(i).get();
+                failed[i] = earthquakes == null || earthquakes.size() != expected;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.v(LOG_TAG, "Query failed: " + e.getCause());
+                failed[i] = true;
+            }
+        }
+
+        Report report = new Report();
+        report.totalMillis = SystemClock.elapsedRealtime() - start;
+        report.requests = config.requests;
+        for (long responseBytes : bytes) {
+            report.bytes += responseBytes;
+        }
+        for (boolean failure : failed) {
+            if (failure) {
+                report.failures++;
+            }
+        }
+        Arrays.sort(latencies);
+        report.p50Millis = percentile(latencies, 0.50);
+        report.p99Millis = percentile(latencies, 0.99);
+        sampler.finish();
+        report.peakHeapBytes = sampler.mPeakHeap;
+        report.peakThreads = sampler.mPeakThreads;
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+        server.stop();
+        Log.i(LOG_TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Starts the same burst of queries at once, first with a thread and a blocking
+     * HttpURLConnection per query and then through the {@link HttpTransport} event loop,
+     * and logs both reports after a warm up run of each. The server waits latencyMillis
+     * before each answer, like a slow mobile network.
+     */
+    public void runTransportBenchmark(int requests, long latencyMillis)
+            throws IOException, JSONException {
+        Config config = new Config();
+        config.requests = requests;
+        config.concurrency = requests;
+        config.server.latencyMillis = latencyMillis;
+
+        // The first runs pay for class loading and JIT compilation, leave them out
+        config.urlConnection = true;
+        run(config);
+        Report perThread = run(config);
+        config.urlConnection = false;
+        config.async = true;
+        run(config);
+        Report eventLoop = run(config);
+
+        Log.i(LOG_TAG, "Transport benchmark, " + requests + " concurrent queries, "
+                + latencyMillis + " ms latency");
+        Log.i(LOG_TAG, "thread per query: " + perThread);
+        Log.i(LOG_TAG, "event loop:       " + eventLoop);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Makes the request with a blocking HttpURLConnection on the calling thread, decodes
+     * the response and hands its measurements to the listener
+     */
+    private static List<Earthquake> fetchWithUrlConnection(String url, EarthquakeDecoder decoder,
+                                                           QueryUtils.ResponseListener listener)
+            throws IOException {
+        long requestStart = SystemClock.elapsedRealtime();
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        ByteArrayOutputStream body;
+        try {
+            urlConnection.setReadTimeout(10000 /* milliseconds */);
+            urlConnection.setConnectTimeout(15000 /* milliseconds */);
+            if (urlConnection.getResponseCode() != 200) {
+                throw new IOException("Error Response Code: " + urlConnection.getResponseCode());
+            }
+            body = readFully(urlConnection.getInputStream());
+        } finally {
+            urlConnection.disconnect();
+        }
+        long networkTime = SystemClock.elapsedRealtime() - requestStart;
+
+        long decodeStart = SystemClock.elapsedRealtime();
+        List<Earthquake> earthquakes = decoder.decode(body.toString("UTF-8"));
+        long decodeTime = SystemClock.elapsedRealtime() - decodeStart;
+        listener.onResponse(decoder.getFormat(), body.size(), networkTime, decodeTime,
+                earthquakes == null ? 0 : earthquakes.size());
+        return earthquakes;
+    }
+
+    /**
+     * Returns the recorded USGS response the stub server replays
+     */
+    static String readFixture(Context context) throws IOException {
+        return readFully(context.getAssets().open(FIXTURE)).toString("UTF-8");
+    }
+
+    /**
+     * Reads the stream to its end and closes it
+     */
+    private static ByteArrayOutputStream readFully(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count = inputStream.read(buffer);
+            while (count != -1) {
+                output.write(buffer, 0, count);
+                count = inputStream.read(buffer);
+            }
+            return output;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Records the size and the latency of one query of a run. The measurements are
+     * kept away from the {@link EarthquakeFormatChooser}, loopback numbers would
+     * mislead it, and from the process wide byte count other fetches add to.
+     */
+    private static class QueryRecorder implements QueryUtils.ResponseListener {
+
+        private final long[] mLatencies;
+        private final long[] mBytes;
+        private final int mIndex;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        QueryRecorder(long[] latencies, long[] bytes, int index) {
+            mLatencies = latencies;
+            mBytes = bytes;
+            mIndex = index;
+        }
+
+        @Override
+        public void onResponse(String format, long bytes, long networkMillis, long decodeMillis,
+                               int events) {
+            mLatencies[mIndex] = SystemClock.elapsedRealtime() - mStartTime;
+            mBytes[mIndex] = bytes;
+        }
+    }
+
+    /**
+     * Samples the used Java heap and the number of live threads until stopped and
+     * remembers the highest values
+     */
+    private static class Sampler extends Thread {
+
+        private volatile boolean mRunning = true;
+        private volatile long mPeakHeap;
+        private volatile int mPeakThreads;
+
+        Sampler() {
+            super("Sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                sample();
+                SystemClock.sleep(SAMPLE_MILLIS);
+            }
+        }
+
+        void finish() {
+            mRunning = false;
+            sample();
+        }
+
+        private void sample() {
+            Runtime runtime = Runtime.getRuntime();
+            mPeakHeap = Math.max(mPeakHeap, runtime.totalMemory() - runtime.freeMemory());
+            mPeakThreads = Math.max(mPeakThreads, Thread.activeCount());
+        }
+    }
+}
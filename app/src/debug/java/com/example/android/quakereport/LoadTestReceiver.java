@@ -0,0 +1,95 @@
+package com.example.android.quakereport;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Starts the {@link LoadTestHarness} in debug builds. The report is written to logcat:
+ *
+ * adb shell am broadcast -a com.example.android.quakereport.LOAD_TEST \
+ *     --ei features 100000 --ei requests 10 --ei concurrency 2 --ez async false \
+ *     --ez urlConnection false \
+ *     --ei latency 200 --ei bandwidth 0 --ez chunked true --ei errorPercent 5 --ei truncatePercent 0
+ *
+ * The transport benchmark, a burst of concurrent queries sent with a thread and an
+ * HttpURLConnection each and then through the HttpTransport event loop, is started
+ * with the transport extra:
+ *
+ * adb shell am broadcast -a com.example.android.quakereport.LOAD_TEST \
+ *     --ez transport true --ei requests 100 --ei latency 50
+ *
+ * The {@link DecoderBenchmark}, comparing the geojson and csv formats, is started with the
+ * decoders extra. A bandwidth cap in bytes per second shows how the formats compare on a
+ * slow network:
+ *
+ * adb shell am broadcast -a com.example.android.quakereport.LOAD_TEST \
+ *     --ez decoders true --ei features 10000 --ei rounds 5 --ei bandwidth 0 --ei latency 0
+ */
+public class LoadTestReceiver extends BroadcastReceiver {
+
+    private static final String LOG_TAG = LoadTestReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(final Context context, Intent intent) {
+        if (intent.getBooleanExtra("transport", false)) {
+            final int requests = intent.getIntExtra("requests", 100);
+            final int latency = intent.getIntExtra("latency", 50);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new LoadTestHarness(context).runTransportBenchmark(requests, latency);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Transport benchmark failed", e);
+                    }
+                }
+            }, "TransportBenchmark").start();
+            return;
+        }
+
+        if (intent.getBooleanExtra("decoders", false)) {
+            final StubUsgsServer.Config server = new StubUsgsServer.Config();
+            server.featureCount = intent.getIntExtra("features", 10000);
+            server.bytesPerSecond = intent.getIntExtra("bandwidth", 0);
+            server.latencyMillis = intent.getIntExtra("latency", 0);
+            final int rounds = intent.getIntExtra("rounds", 5);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DecoderBenchmark.run(context, server, rounds);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Decoder benchmark failed", e);
+                    }
+                }
+            }, "DecoderBenchmark").start();
+            return;
+        }
+
+        final LoadTestHarness.Config config = new LoadTestHarness.Config();
+        config.requests = intent.getIntExtra("requests", config.requests);
+        config.concurrency = intent.getIntExtra("concurrency", config.concurrency);
+        config.async = intent.getBooleanExtra("async", config.async);
+        config.urlConnection = intent.getBooleanExtra("urlConnection", config.urlConnection);
+        config.server.featureCount = intent.getIntExtra("features", config.server.featureCount);
+        config.server.latencyMillis = intent.getIntExtra("latency", 0);
+        config.server.bytesPerSecond = intent.getIntExtra("bandwidth", 0);
+        config.server.chunked = intent.getBooleanExtra("chunked", config.server.chunked);
+        config.server.errorRate = intent.getIntExtra("errorPercent", 0) / 100.0;
+        config.server.truncateRate = intent.getIntExtra("truncatePercent", 0) / 100.0;
+
+        // A load test takes far longer than a receiver may run
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new LoadTestHarness(context).run(config);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Load test failed", e);
+                }
+            }
+        }, "LoadTest").start();
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for the USGS query endpoint, used by the {@link LoadTestHarness}.
+ *
+ * It replays the features of a recorded GeoJSON response, repeating them with new ids
+ * until the requested payload size is reached, so responses of 100k features can be
+ * served without holding them in memory. Requests with format=csv get the same events
+ * as csv rows with the USGS columns. Latency, bandwidth, chunked delivery and
+ * failures are set through {@link Config}.
+ */
+public class StubUsgsServer {
+
+    private static final String LOG_TAG = StubUsgsServer.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Placeholders replaced in each replayed feature */
+    private static final String ID_PLACEHOLDER = "__STUB_ID__";
+    private static final String URL_PLACEHOLDER = "__STUB_URL__";
+    private static final String TIME_PLACEHOLDER = "1111111111111";
+    private static final String CSV_TIME_PLACEHOLDER = "__STUB_TIME__";
+
+    /* Columns of a USGS csv response */
+    private static final String CSV_HEADER = "time,latitude,longitude,depth,mag,magType,nst,gap,"
+            + "dmin,rms,net,id,updated,place,type,horizontalError,depthError,magError,magNst,"
+            + "status,locationSource,magSource";
+
+    /* Pattern of the time columns of the csv format */
+    private static final String CSV_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * Behaviour of the stub server
+     */
+    public static class Config {
+
+        /* Number of features in a response, a smaller limit query parameter wins */
+        public int featureCount = 1000;
+
+        /* Delay before the response headers are sent */
+        public long latencyMillis = 0;
+
+        /* Maximum bytes sent per second, 0 for no cap */
+        public long bytesPerSecond = 0;
+
+        /* Send the body with chunked transfer encoding instead of closing the connection */
+        public boolean chunked = false;
+
+        /* Size of each write, and of each chunk when chunked */
+        public int chunkSize = 8192;
+
+        /* Fraction of requests answered with 503 */
+        public double errorRate = 0;
+
+        /* Fraction of requests whose connection is dropped halfway through the body */
+        public double truncateRate = 0;
+    }
+
+    private final Config mConfig;
+
+    /* Features of the fixture with their id, url and time replaced by placeholders */
+    private final List<String> mFeatureTemplates = new ArrayList<>();
+
+    /* The same features as csv rows, with their id and time replaced by placeholders */
+    private final List<String> mCsvTemplates = new ArrayList<>();
+
+    private final Random mRandom = new Random();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private ServerSocket mServerSocket;
+
+    /**
+     * @param fixtureJson a recorded USGS GeoJSON response
+     * @param config      behaviour of the server
+     */
+    public StubUsgsServer(String fixtureJson, Config config) throws JSONException {
+        mConfig = config;
+        JSONArray features = new JSONObject(fixtureJson).getJSONArray("features");
+        SimpleDateFormat timeFormat = createCsvTimeFormat();
+        for (int i = 0; i < features.length(); i++) {
+            JSONObject feature = features.getJSONObject(i);
+            mCsvTemplates.add(toCsvTemplate(feature, timeFormat));
+            feature.put("id", ID_PLACEHOLDER);
+            JSONObject properties = feature.getJSONObject("properties");
+            properties.put("url", URL_PLACEHOLDER);
+            properties.put("time", Long.parseLong(TIME_PLACEHOLDER));
+            mFeatureTemplates.add(feature.toString());
+        }
+        if (mFeatureTemplates.isEmpty()) {
+            throw new JSONException("The fixture has no features");
+        }
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!mServerSocket.isClosed()) {
+                            Log.e(LOG_TAG, "Problem accepting a connection", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stop() {
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem closing the server", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the url of the query endpoint
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/fdsnws/event/1/query";
+    }
+
+    /**
+     * Answers one request and closes the connection
+     */
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = reader.readLine();
+            // Skip the headers, nothing in them changes the answer
+            String header = reader.readLine();
+            while (header != null && !header.isEmpty()) {
+                header = reader.readLine();
+            }
+            if (requestLine == null) {
+                return;
+            }
+
+            int featureCount = mConfig.featureCount;
+            boolean csv = false;
+            String[] parts = requestLine.split(" ");
+            if (parts.length > 1) {
+                csv = "csv".equals(Uri.parse(parts[1]).getQueryParameter("format"));
+                String limit = Uri.parse(parts[1]).getQueryParameter("limit");
+                if (limit != null) {
+                    try {
+                        featureCount = Math.min(featureCount, Integer.parseInt(limit));
+                    } catch (NumberFormatException e) {
+                        // Keep the configured count
+                    }
+                }
+            }
+
+            if (mConfig.latencyMillis > 0) {
+                Thread.sleep(mConfig.latencyMillis);
+            }
+
+            OutputStream output = socket.getOutputStream();
+            if (mRandom.nextDouble() < mConfig.errorRate) {
+                output.write(("HTTP/1.1 503 Service Unavailable\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(UTF_8));
+                output.flush();
+                return;
+            }
+
+            boolean truncate = mRandom.nextDouble() < mConfig.truncateRate;
+            if (csv) {
+                writeCsvBody(output, featureCount, truncate);
+            } else {
+                writeBody(output, featureCount, truncate);
+            }
+        } catch (IOException e) {
+            // The client went away, nothing left to answer
+            Log.v(LOG_TAG, "Connection closed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem closing the connection", e);
+            }
+        }
+    }
+
+    /**
+     * Streams the GeoJSON body feature by feature
+     */
+    private void writeBody(OutputStream socketOutput, int featureCount, boolean truncate)
+            throws IOException, InterruptedException {
+        writeHead(socketOutput, "application/json");
+
+        BodyWriter body = new BodyWriter(socketOutput);
+        body.write("{\"type\":\"FeatureCollection\",\"metadata\":{\"count\":"
+                + featureCount + "},\"features\":[");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < featureCount; i++) {
+            if (truncate && i == featureCount / 2) {
+                // Drop the connection without finishing the body
+                body.flush();
+                return;
+            }
+            String template = mFeatureTemplates.get(i % mFeatureTemplates.size());
+            String id = "stub" + i;
+            body.write((i == 0 ? "" : ",") + template
+                    .replace(ID_PLACEHOLDER, id)
+                    .replace(URL_PLACEHOLDER, "https://earthquake.usgs.gov/earthquakes/eventpage/" + id)
+                    .replace(TIME_PLACEHOLDER, String.valueOf(now - i * 60000L)));
+        }
+        body.write("]}");
+        body.finish();
+    }
+
+    /**
+     * Streams the csv body row by row
+     */
+    private void writeCsvBody(OutputStream socketOutput, int featureCount, boolean truncate)
+            throws IOException, InterruptedException {
+        writeHead(socketOutput, "text/csv");
+
+        BodyWriter body = new BodyWriter(socketOutput);
+        body.write(CSV_HEADER + "\n");
+        SimpleDateFormat timeFormat = createCsvTimeFormat();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < featureCount; i++) {
+            if (truncate && i == featureCount / 2) {
+                // Drop the connection without finishing the body
+                body.flush();
+                return;
+            }
+            String template = mCsvTemplates.get(i % mCsvTemplates.size());
+            body.write(template
+                    .replace(ID_PLACEHOLDER, "stub" + i)
+                    .replace(CSV_TIME_PLACEHOLDER, timeFormat.format(new Date(now - i * 60000L)))
+                    + "\n");
+        }
+        body.finish();
+    }
+
+    private void writeHead(OutputStream socketOutput, String contentType) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + contentType + "\r\nConnection: close\r\n");
+        if (mConfig.chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+        socketOutput.write(head.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Returns the csv row of a fixture feature, in the order of CSV_HEADER
+     */
+    private static String toCsvTemplate(JSONObject feature, SimpleDateFormat timeFormat)
+            throws JSONException {
+        JSONObject properties = feature.getJSONObject("properties");
+        JSONArray coordinates = feature.getJSONObject("geometry").getJSONArray("coordinates");
+        String net = csvValue(properties, "net");
+        return CSV_TIME_PLACEHOLDER
+                + "," + coordinates.getDouble(1)
+                + "," + coordinates.getDouble(0)
+                + "," + coordinates.getDouble(2)
+                + "," + csvValue(properties, "mag")
+                + "," + csvValue(properties, "magType")
+                + "," + csvValue(properties, "nst")
+                + "," + csvValue(properties, "gap")
+                + "," + csvValue(properties, "dmin")
+                + "," + csvValue(properties, "rms")
+                + "," + net
+                + "," + ID_PLACEHOLDER
+                + "," + timeFormat.format(new Date(properties.getLong("updated")))
+                + ",\"" + properties.getString("place").replace("\"", "\"\"") + "\""
+                + "," + csvValue(properties, "type")
+                + ",,,,"
+                + "," + csvValue(properties, "status")
+                + "," + net
+                + "," + net;
+    }
+
+    private static String csvValue(JSONObject properties, String name) {
+        Object value = properties.opt(name);
+        return value == null || value == JSONObject.NULL ? "" : value.toString();
+    }
+
+    private static SimpleDateFormat createCsvTimeFormat() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat(CSV_TIME_PATTERN, Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return timeFormat;
+    }
+
+    /**
+     * Buffers the body into writes of chunkSize bytes, framing them as chunks when
+     * needed and sleeping between them to respect the bandwidth cap
+     */
+    private class BodyWriter {
+
+        private final OutputStream mOutput;
+        private final byte[] mBuffer = new byte[mConfig.chunkSize];
+        private int mCount;
+        private final long mStartTime = System.currentTimeMillis();
+        private long mBytesSent;
+
+        BodyWriter(OutputStream output) {
+            mOutput = output;
+        }
+
+        void write(String text) throws IOException, InterruptedException {
+            byte[] bytes = text.getBytes(UTF_8);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, mBuffer.length - mCount);
+                System.arraycopy(bytes, offset, mBuffer, mCount, length);
+                mCount += length;
+                offset += length;
+                if (mCount == mBuffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        void flush() throws IOException, InterruptedException {
+            if (mCount == 0) {
+                return;
+            }
+            if (mConfig.chunked) {
+                mOutput.write((Integer.toHexString(mCount) + "\r\n").getBytes(UTF_8));
+            }
+            mOutput.write(mBuffer, 0, mCount);
+            if (mConfig.chunked) {
+                mOutput.write("\r\n".getBytes(UTF_8));
+            }
+            mOutput.flush();
+            mBytesSent += mCount;
+            mCount = 0;
+
+            if (mConfig.bytesPerSecond > 0) {
+                long due = mStartTime + mBytesSent * 1000 / mConfig.bytesPerSecond;
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+        }
+
+        void finish() throws IOException, InterruptedException {
+            flush();
+            if (mConfig.chunked) {
+                mOutput.write("0\r\n\r\n".getBytes(UTF_8));
+                mOutput.flush();
+            }
+        }
+    }
+}
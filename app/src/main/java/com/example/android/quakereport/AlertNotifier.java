@@ -0,0 +1,230 @@
+package com.example.android.quakereport;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Checks every batch of earthquakes from the loader and the background sync against the
+ * user's {@link AlertRule}s and posts one notification per matching earthquake.
+ *
+ * The rules and the ids of the earthquakes already notified are kept in preferences,
+ * so an earthquake is never notified twice, even across restarts.
+ */
+public final class AlertNotifier {
+
+    private static final String LOG_TAG = AlertNotifier.class.getSimpleName();
+
+    /* Preferences file holding the rules and the notified earthquakes */
+    private static final String PREFS_NAME = "earthquake_alerts";
+    private static final String KEY_RULES = "rules";
+    private static final String KEY_NOTIFIED_IDS = "notified_ids";
+
+    /* Number of notified earthquake ids remembered, oldest dropped first */
+    private static final int MAX_NOTIFIED_IDS = 500;
+
+    /* Earthquakes older than this are history, not news, and never notified */
+    private static final long MAX_EVENT_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+    /* Tag of the alert notifications */
+    private static final String NOTIFICATION_TAG = "earthquake_alert";
+
+    /* Engine compiled from the rules text in sCompiledRules */
+    private static AlertRuleEngine sEngine;
+    private static String sCompiledRules;
+
+    private AlertNotifier() {
+    }
+
+    /**
+     * Returns the saved rules
+     */
+    public static List<AlertRule> getRules(Context context) {
+        String encoded = getPreferences(context).getString(KEY_RULES, "");
+        List<AlertRule> rules = new ArrayList<>();
+        if (!TextUtils.isEmpty(encoded)) {
+            for (String line : encoded.split("\n")) {
+                AlertRule rule = AlertRule.decode(line);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Replaces the saved rules
+     */
+    public static void setRules(Context context, List<AlertRule> rules) {
+        List<String> lines = new ArrayList<>();
+        for (AlertRule rule : rules) {
+            lines.add(rule.encode());
+        }
+        getPreferences(context).edit().putString(KEY_RULES, TextUtils.join("\n", lines)).apply();
+    }
+
+    /**
+     * Parses rules typed in the settings, one per line. A line is either a minimum
+     * magnitude for earthquakes anywhere ("6.5"), or a minimum magnitude followed by the
+     * latitude, longitude and radius in km of an area ("5 35.68 139.69 300").
+     * Blank lines are skipped.
+     *
+     * @return the rules, or null if a line is not a valid rule
+     */
+    public static List<AlertRule> parseRules(String text) {
+        List<AlertRule> rules = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("[\\s,]+");
+            try {
+                double minMagnitude = Double.parseDouble(fields[0]);
+                if (minMagnitude < 0 || minMagnitude > 10) {
+                    return null;
+                }
+                String id = "rule" + rules.size();
+                if (fields.length == 1) {
+                    rules.add(new AlertRule(id, minMagnitude));
+                } else if (fields.length == 4) {
+                    double latitude = Double.parseDouble(fields[1]);
+                    double longitude = Double.parseDouble(fields[2]);
+                    double radiusKm = Double.parseDouble(fields[3]);
+                    if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180 || !(radiusKm > 0)) {
+                        return null;
+                    }
+                    rules.add(new AlertRule(id, minMagnitude, latitude, longitude, radiusKm));
+                } else {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Returns the rules as text read back by {@link #parseRules(String)}
+     */
+    public static String formatRules(List<AlertRule> rules) {
+        // Always with a dot, the text is parsed back with Double.parseDouble
+        DecimalFormat format = new DecimalFormat("0.####", DecimalFormatSymbols.getInstance(Locale.US));
+        List<String> lines = new ArrayList<>();
+        for (AlertRule rule : rules) {
+            if (rule.isGlobal()) {
+                lines.add(format.format(rule.getmMinMagnitude()));
+            } else {
+                lines.add(format.format(rule.getmMinMagnitude())
+                        + " " + format.format(rule.getmLatitude())
+                        + " " + format.format(rule.getmLongitude())
+                        + " " + format.format(rule.getmRadiusKm()));
+            }
+        }
+        return TextUtils.join("\n", lines);
+    }
+
+    /**
+     * Evaluates the batch and notifies the earthquakes that trigger a rule.
+     * This is on a background thread.
+     */
+    public static synchronized void onEarthquakesLoaded(Context context, List<Earthquake> earthquakes) {
+        if (earthquakes == null || earthquakes.isEmpty()) {
+            return;
+        }
+        AlertRuleEngine engine = getEngine(context);
+        if (engine.getRuleCount() == 0) {
+            return;
+        }
+
+        long oldest = System.currentTimeMillis() - MAX_EVENT_AGE_MILLIS;
+        List<Earthquake> recent = new ArrayList<>();
+        for (Earthquake earthquake : earthquakes) {
+            if (earthquake.getmTimeInMilliseconds() >= oldest) {
+                recent.add(earthquake);
+            }
+        }
+
+        Set<String> notifiedIds = getNotifiedIds(context);
+        List<AlertRuleEngine.Alert> alerts = engine.evaluate(recent, notifiedIds);
+        if (alerts.isEmpty()) {
+            return;
+        }
+        saveNotifiedIds(context, notifiedIds);
+
+        NotificationManager notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        DecimalFormat magnitudeFormat = new DecimalFormat("0.0");
+        for (AlertRuleEngine.Alert alert : alerts) {
+            Earthquake earthquake = alert.getEarthquake();
+            Intent websiteIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(earthquake.getmUrl()));
+            PendingIntent contentIntent = PendingIntent.getActivity(context, 0, websiteIntent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                    .setSmallIcon(R.drawable.ic_stat_quake)
+                    .setContentTitle(context.getString(R.string.alert_title,
+                            magnitudeFormat.format(earthquake.getmMagnitude())))
+                    .setContentText(earthquake.getmLocation())
+                    .setContentIntent(contentIntent)
+                    .setAutoCancel(true);
+            notificationManager.notify(NOTIFICATION_TAG, earthquake.getmUrl().hashCode(),
+                    builder.build());
+        }
+        Log.i(LOG_TAG, "Notified " + alerts.size() + " earthquakes");
+    }
+
+    /**
+     * Returns the engine for the saved rules, compiling it again only when they changed
+     */
+    private static AlertRuleEngine getEngine(Context context) {
+        String encoded = getPreferences(context).getString(KEY_RULES, "");
+        if (sEngine == null || !encoded.equals(sCompiledRules)) {
+            sEngine = new AlertRuleEngine(getRules(context));
+            sCompiledRules = encoded;
+        }
+        return sEngine;
+    }
+
+    /**
+     * Returns the ids of the earthquakes notified so far, oldest first
+     */
+    private static Set<String> getNotifiedIds(Context context) {
+        String saved = getPreferences(context).getString(KEY_NOTIFIED_IDS, "");
+        Set<String> ids = new LinkedHashSet<>();
+        if (!TextUtils.isEmpty(saved)) {
+            ids.addAll(Arrays.asList(saved.split("\n")));
+        }
+        return ids;
+    }
+
+    private static void saveNotifiedIds(Context context, Set<String> ids) {
+        List<String> kept = new ArrayList<>(ids);
+        if (kept.size() > MAX_NOTIFIED_IDS) {
+            kept = kept.subList(kept.size() - MAX_NOTIFIED_IDS, kept.size());
+        }
+        getPreferences(context).edit()
+                .putString(KEY_NOTIFIED_IDS, TextUtils.join("\n", kept))
+                .apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.quakereport;
+
+/**
+ * A user watch rule, like "M5+ within 300 km of Tokyo" or "any M7+ anywhere".
+ */
+public class AlertRule {
+
+    /* Separator of the fields in the encoded form */
+    private static final String SEPARATOR = "|";
+
+    /* Id of the rule */
+    private String mId;
+
+    /* Smallest magnitude that triggers the rule */
+    private double mMinMagnitude;
+
+    /* Center of the watched area */
+    private double mLatitude;
+    private double mLongitude;
+
+    /* Radius of the watched area, infinite for anywhere */
+    private double mRadiusKm;
+
+    /**
+     * Creates a rule matching earthquakes anywhere
+     *
+     * @param mId           id of the rule
+     * @param mMinMagnitude smallest magnitude that triggers the rule
+     */
+    public AlertRule(String mId, double mMinMagnitude) {
+        this(mId, mMinMagnitude, 0, 0, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Creates a rule matching earthquakes within a distance of a point
+     *
+     * @param mId           id of the rule
+     * @param mMinMagnitude smallest magnitude that triggers the rule
+     * @param mLatitude     latitude of the center of the watched area
+     * @param mLongitude    longitude of the center of the watched area
+     * @param mRadiusKm     radius of the watched area in kilometers
+     */
+    public AlertRule(String mId, double mMinMagnitude, double mLatitude, double mLongitude,
+                     double mRadiusKm) {
+        this.mId = mId;
+        this.mMinMagnitude = mMinMagnitude;
+        this.mLatitude = mLatitude;
+        this.mLongitude = mLongitude;
+        this.mRadiusKm = mRadiusKm;
+    }
+
+    /**
+     * Returns id of the rule
+     */
+    public String getmId() {
+        return mId;
+    }
+
+    /**
+     * Returns smallest magnitude that triggers the rule
+     */
+    public double getmMinMagnitude() {
+        return mMinMagnitude;
+    }
+
+    /**
+     * Returns latitude of the center of the watched area
+     */
+    public double getmLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * Returns longitude of the center of the watched area
+     */
+    public double getmLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Returns radius of the watched area in kilometers, infinite for anywhere
+     */
+    public double getmRadiusKm() {
+        return mRadiusKm;
+    }
+
+    /**
+     * Returns true if the rule matches earthquakes anywhere
+     */
+    public boolean isGlobal() {
+        return Double.isInfinite(mRadiusKm);
+    }
+
+    /**
+     * Returns the rule as one line of text, read back by {@link #decode(String)}
+     */
+    public String encode() {
+        return mId + SEPARATOR + mMinMagnitude + SEPARATOR + mLatitude + SEPARATOR
+                + mLongitude + SEPARATOR + mRadiusKm;
+    }
+
+    /**
+     * Returns the rule encoded by {@link #encode()}, or null if the text is not a rule
+     */
+    public static AlertRule decode(String encoded) {
+        String[] fields = encoded.split("\\" + SEPARATOR);
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            return new AlertRule(fields[0], Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                    Double.parseDouble(fields[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates many {@link AlertRule}s against batches of earthquakes without checking
+ * every rule against every event.
+ *
+ * Rules are compiled once into a grid of latitude/longitude cells. Each regional rule is
+ * put in every cell its area overlaps, global rules are kept apart, and every list is
+ * sorted by minimum magnitude. An event then only looks at the rules of its own cell
+ * whose threshold it reaches, and only those get the exact distance check.
+ */
+public final class AlertRuleEngine {
+
+    /* Size of a grid cell in degrees */
+    private static final double CELL_DEGREES = 5;
+    private static final int ROWS = (int) (180 / CELL_DEGREES);
+    private static final int COLUMNS = (int) (360 / CELL_DEGREES);
+
+    /* Mean radius of the Earth */
+    private static final double EARTH_RADIUS_KM = 6371;
+
+    private static final Comparator<AlertRule> BY_MIN_MAGNITUDE = new Comparator<AlertRule>() {
+        @Override
+        public int compare(AlertRule a, AlertRule b) {
+            return Double.compare(a.getmMinMagnitude(), b.getmMinMagnitude());
+        }
+    };
+
+    /* Global rules, sorted by minimum magnitude */
+    private final Bucket mGlobalRules;
+
+    /* Regional rules of every cell, null for cells no rule covers */
+    private final Bucket[] mCells = new Bucket[ROWS * COLUMNS];
+
+    private final int mRuleCount;
+
+    /**
+     * An earthquake along with every rule it triggered
+     */
+    public static class Alert {
+        private final Earthquake mEarthquake;
+        private final List<AlertRule> mRules;
+
+        Alert(Earthquake earthquake, List<AlertRule> rules) {
+            mEarthquake = earthquake;
+            mRules = rules;
+        }
+
+        /**
+         * Returns the earthquake that triggered the rules
+         */
+        public Earthquake getEarthquake() {
+            return mEarthquake;
+        }
+
+        /**
+         * Returns the rules triggered by the earthquake
+         */
+        public List<AlertRule> getRules() {
+            return mRules;
+        }
+    }
+
+    /* Rules sorted by minimum magnitude, with their thresholds for binary search */
+    private static class Bucket {
+        final AlertRule[] mRules;
+        final double[] mThresholds;
+
+        Bucket(List<AlertRule> rules) {
+            Collections.sort(rules, BY_MIN_MAGNITUDE);
+            mRules = rules.toArray(new AlertRule[rules.size()]);
+            mThresholds = new double[mRules.length];
+            for (int i = 0; i < mRules.length; i++) {
+                mThresholds[i] = mRules[i].getmMinMagnitude();
+            }
+        }
+
+        /**
+         * Returns the number of leading rules whose threshold the magnitude reaches
+         */
+        int countReachedBy(double magnitude) {
+            int index = Arrays.binarySearch(mThresholds, magnitude);
+            if (index < 0) {
+                return -index - 1;
+            }
+            // Include every rule with exactly this threshold
+            while (index < mThresholds.length && mThresholds[index] == magnitude) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Compiles the rules. This takes time for many rules, so do it off the main thread.
+     */
+    public AlertRuleEngine(List<AlertRule> rules) {
+        List<AlertRule> globalRules = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        List<AlertRule>[] cells = new List[ROWS * COLUMNS];
+
+        for (AlertRule rule : rules) {
+            if (rule.isGlobal()) {
+                globalRules.add(rule);
+                continue;
+            }
+            double radiusDegrees = Math.toDegrees(rule.getmRadiusKm() / EARTH_RADIUS_KM);
+            double minLatitude = Math.max(-90, rule.getmLatitude() - radiusDegrees);
+            double maxLatitude = Math.min(90, rule.getmLatitude() + radiusDegrees);
+
+            // The longitude span of the area grows with latitude, the whole circle of
+            // longitudes is covered when the area reaches a pole
+            int firstColumn = 0;
+            int lastColumn = COLUMNS - 1;
+            if (minLatitude > -90 && maxLatitude < 90) {
+                double widest = Math.max(Math.abs(minLatitude), Math.abs(maxLatitude));
+                double radiusLongitude = radiusDegrees / Math.cos(Math.toRadians(widest));
+                if (radiusLongitude < 180 - CELL_DEGREES) {
+                    firstColumn = column(rule.getmLongitude() - radiusLongitude);
+                    lastColumn = column(rule.getmLongitude() + radiusLongitude);
+                    if (lastColumn < firstColumn) {
+                        // Crosses the antimeridian
+                        lastColumn += COLUMNS;
+                    }
+                }
+            }
+
+            for (int row = row(minLatitude); row <= row(maxLatitude); row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int cell = row * COLUMNS + column % COLUMNS;
+                    if (cells[cell] == null) {
+                        cells[cell] = new ArrayList<>();
+                    }
+                    cells[cell].add(rule);
+                }
+            }
+        }
+
+        mGlobalRules = new Bucket(globalRules);
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != null) {
+                mCells[i] = new Bucket(cells[i]);
+            }
+        }
+        mRuleCount = rules.size();
+    }
+
+    /**
+     * Returns the number of compiled rules
+     */
+    public int getRuleCount() {
+        return mRuleCount;
+    }
+
+    /**
+     * Evaluates a batch of earthquakes in one pass. Earthquakes whose url is in
+     * notifiedIds are skipped, and the url of every earthquake that triggers a rule is
+     * added to it, so each earthquake is alerted at most once.
+     *
+     * @return one alert per earthquake that triggered at least one rule
+     */
+    public List<Alert> evaluate(List<Earthquake> earthquakes, Set<String> notifiedIds) {
+        List<Alert> alerts = new ArrayList<>();
+        for (Earthquake earthquake : earthquakes) {
+            if (notifiedIds.contains(earthquake.getmUrl())) {
+                continue;
+            }
+            List<AlertRule> matched = match(earthquake);
+            if (!matched.isEmpty()) {
+                notifiedIds.add(earthquake.getmUrl());
+                alerts.add(new Alert(earthquake, matched));
+            }
+        }
+        return alerts;
+    }
+
+    /**
+     * Returns the rules triggered by one earthquake
+     */
+    List<AlertRule> match(Earthquake earthquake) {
+        List<AlertRule> matched = new ArrayList<>(0);
+        double magnitude = earthquake.getmMagnitude();
+
+        int globalCount = mGlobalRules.countReachedBy(magnitude);
+        for (int i = 0; i < globalCount; i++) {
+            matched.add(mGlobalRules.mRules[i]);
+        }
+
+        if (!earthquake.hasCoordinates()) {
+            return matched;
+        }
+        Bucket cell = mCells[row(earthquake.getmLatitude()) * COLUMNS
+                + column(earthquake.getmLongitude())];
+        if (cell == null) {
+            return matched;
+        }
+        int count = cell.countReachedBy(magnitude);
+        for (int i = 0; i < count; i++) {
+            AlertRule rule = cell.mRules[i];
+            if (distanceKm(rule.getmLatitude(), rule.getmLongitude(),
+                    earthquake.getmLatitude(), earthquake.getmLongitude()) <= rule.getmRadiusKm()) {
+                matched.add(rule);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Returns the great-circle distance between two points, using the haversine formula
+     */
+    static double distanceKm(double latitude1, double longitude1,
+                             double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int row(double latitude) {
+        return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((latitude + 90) / CELL_DEGREES)));
+    }
+
+    private static int column(double longitude) {
+        // Normalise to [-180, 180) first so areas crossing the antimeridian wrap around
+        double normalised = ((longitude + 180) % 360 + 360) % 360;
+        return Math.min(COLUMNS - 1, (int) Math.floor(normalised / CELL_DEGREES));
+    }
+}
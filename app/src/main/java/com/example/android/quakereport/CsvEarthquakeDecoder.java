@@ -0,0 +1,148 @@
+package com.example.android.quakereport;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * {@link EarthquakeDecoder} for the USGS "csv" format.
+ *
+ * The csv response has no url column, so the url is built from the event id
+ * in the same way the USGS website builds its event pages.
+ */
+public class CsvEarthquakeDecoder implements EarthquakeDecoder {
+
+    private static final String LOG_TAG = CsvEarthquakeDecoder.class.getSimpleName();
+
+    /* Value of the format query parameter for csv responses */
+    public static final String FORMAT = "csv";
+
+    /* Prefix of the USGS event page, the event id is appended to it */
+    private static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    /* Pattern of the time column i.e. "2017-03-26T12:34:56.789Z" */
+    private static final String TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public List<Earthquake> decode(String response) {
+
+        // If response is empty then return early
+        if (TextUtils.isEmpty(response)) {
+            return null;
+        }
+
+        ArrayList<Earthquake> earthquakes = new ArrayList<>();
+
+        // SimpleDateFormat is not thread safe, so every decode gets its own instance
+        SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_PATTERN, Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        // Column positions are taken from the header row instead of being hard coded
+        int lineStart = 0;
+        int lineEnd = nextLineEnd(response, lineStart);
+        List<String> header = splitLine(response, lineStart, lineEnd);
+        int timeColumn = header.indexOf("time");
+        int magColumn = header.indexOf("mag");
+        int placeColumn = header.indexOf("place");
+        int idColumn = header.indexOf("id");
+        int latitudeColumn = header.indexOf("latitude");
+        int longitudeColumn = header.indexOf("longitude");
+        if (timeColumn < 0 || magColumn < 0 || placeColumn < 0 || idColumn < 0) {
+            Log.e(LOG_TAG, "Unexpected csv header: " + header);
+            return earthquakes;
+        }
+
+        lineStart = lineEnd + 1;
+        while (lineStart < response.length()) {
+            lineEnd = nextLineEnd(response, lineStart);
+            if (lineEnd > lineStart) {
+                List<String> columns = splitLine(response, lineStart, lineEnd);
+                try {
+                    double magnitude = Double.parseDouble(columns.get(magColumn));
+                    long time = timeFormat.parse(columns.get(timeColumn)).getTime();
+                    String location = columns.get(placeColumn);
+                    String url = EVENT_PAGE_URL + columns.get(idColumn);
+                    double latitude = parseCoordinate(columns, latitudeColumn);
+                    double longitude = parseCoordinate(columns, longitudeColumn);
+                    earthquakes.add(new Earthquake(magnitude, location, time, url,
+                            latitude, longitude));
+                } catch (NumberFormatException | ParseException | IndexOutOfBoundsException e) {
+                    // Skip the row so one malformed event doesn't drop the whole response
+                    Log.e(LOG_TAG, "Problem parsing the earthquake csv row", e);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        return earthquakes;
+    }
+
+    /**
+     * Returns the coordinate in the given column, NaN if the column is missing or empty
+     */
+    private static double parseCoordinate(List<String> columns, int column) {
+        if (column < 0 || TextUtils.isEmpty(columns.get(column))) {
+            return Double.NaN;
+        }
+        return Double.parseDouble(columns.get(column));
+    }
+
+    /**
+     * Returns the index of the line break ending the line that starts at lineStart,
+     * or the length of the response for the last line
+     */
+    private static int nextLineEnd(String response, int lineStart) {
+        int lineEnd = response.indexOf('\n', lineStart);
+        return lineEnd < 0 ? response.length() : lineEnd;
+    }
+
+    /**
+     * Splits one csv line into its columns. Columns wrapped in double quotes
+     * (like the place "5km N of Cairo, Egypt") may contain commas and escaped quotes.
+     */
+    private static List<String> splitLine(String response, int lineStart, int lineEnd) {
+        // Ignore the carriage return of windows style line breaks
+        if (lineEnd > lineStart && response.charAt(lineEnd - 1) == '\r') {
+            lineEnd--;
+        }
+
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+        for (int i = lineStart; i < lineEnd; i++) {
+            char c = response.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < lineEnd && response.charAt(i + 1) == '"') {
+                        column.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    column.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                columns.add(column.toString());
+                column.setLength(0);
+            } else {
+                column.append(c);
+            }
+        }
+        columns.add(column.toString());
+        return columns;
+    }
+}
@@ -18,16 +18,36 @@ public class Earthquake {
     /* url of the earthquake */
     private String mUrl;
 
+    /* Latitude of the epicenter, NaN if unknown */
+    private double mLatitude;
+
+    /* Longitude of the epicenter, NaN if unknown */
+    private double mLongitude;
+
     /**
      * @param mMagnitude          magnitude of the earthquake
      * @param mLocation           Location of the earthquake
      * @param mTimeInMilliseconds Date of the earthquake
      */
     public Earthquake(double mMagnitude, String mLocation, long mTimeInMilliseconds, String mUrl) {
+        this(mMagnitude, mLocation, mTimeInMilliseconds, mUrl, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * @param mMagnitude          magnitude of the earthquake
+     * @param mLocation           Location of the earthquake
+     * @param mTimeInMilliseconds Date of the earthquake
+     * @param mLatitude           Latitude of the epicenter
+     * @param mLongitude          Longitude of the epicenter
+     */
+    public Earthquake(double mMagnitude, String mLocation, long mTimeInMilliseconds, String mUrl,
+                      double mLatitude, double mLongitude) {
         this.mMagnitude = mMagnitude;
         this.mLocation = mLocation;
         this.mTimeInMilliseconds = mTimeInMilliseconds;
         this.mUrl = mUrl;
+        this.mLatitude = mLatitude;
+        this.mLongitude = mLongitude;
     }
 
     /**
@@ -57,4 +77,25 @@ public class Earthquake {
     public String getmUrl() {
         return mUrl;
     }
+
+    /**
+     * Returns latitude of the epicenter, NaN if unknown
+     */
+    public double getmLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * Returns longitude of the epicenter, NaN if unknown
+     */
+    public double getmLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Returns true if the epicenter is known
+     */
+    public boolean hasCoordinates() {
+        return !Double.isNaN(mLatitude) && !Double.isNaN(mLongitude);
+    }
 }
@@ -16,16 +16,16 @@
 package com.example.android.quakereport;
 
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
-import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.Menu;
@@ -41,7 +41,8 @@ import java.util.List;
 
 
 
-public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>>{
+public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>>,
+        ExportFragment.Callbacks {
 
     /* Tag for the log messages*/
     public static final String LOG_TAG = EarthquakeActivity.class.getName();
@@ -70,11 +71,38 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
      */
     private LoaderManager mloadermanager = getLoaderManager();
 
+    /* Bundle key telling onCreateLoader to bypass the EarthquakeCache */
+    private static final String KEY_FORCE_REFRESH = "force_refresh";
+
+    /* Query url of the displayed list, used to notice changed preferences */
+    private String mQueryUrl;
+
+    /* Export formats, in the order of the export_format_labels array */
+    private static final String[] EXPORT_FORMATS =
+            {EarthquakeExporter.FORMAT_CSV, EarthquakeExporter.FORMAT_GEOJSON};
+
+    /* Running export and its progress dialog, null when no export runs */
+    private ExportFragment mExportFragment;
+    private ProgressDialog mExportDialog;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("onCreate");
 
         super.onCreate(savedInstanceState);
+
+        // Start loading before the layout is inflated. The filters are read, the network is
+        // checked and the request is sent on a background thread while the views are set up.
+        // After a configuration change the loader still holds its data, so nothing is needed.
+        if (mloadermanager.getLoader(EARTHQUAKE_LOADER_ID) == null) {
+            EarthquakeLoader.preload(this);
+        }
+
+        // Let the in-memory caches react to onTrimMemory and onLowMemory
+        MemoryBudget.getInstance().install(this);
+
+        StartupTrace.begin("inflate");
         setContentView(R.layout.earthquake_activity);
 
         // Find a reference to the {@link ListView} in the layout
@@ -113,25 +141,32 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             }
         });
 
-        // Checking for Internet connection using checkConnectivity function
-        // We will initiate the loader only if there is an internet connection
-        if(checkConnectivity())  {
+        StartupTrace.end("inflate");
 
-            // Initialize the loader. Pass in the int ID constant defined above and pass in null for
-            // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
-            // because this activity implements the LoaderCallbacks interface).
-            mloadermanager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
-        }
-        else {
-            // Otherwise display error
-            // First hide the loading circle indicator
-            ProgressBar loadingCircle = (ProgressBar) findViewById(R.id.loading_circle);
-            loadingCircle.setVisibility(View.GONE);
-
-            // Now set the emptyView to show No Internet connection available error
-            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        // An export started before a configuration change is still running
+        mExportFragment = (ExportFragment) getFragmentManager()
+                .findFragmentByTag(ExportFragment.TAG);
+        if (mExportFragment != null && mExportFragment.isRunning()) {
+            showExportProgress();
+            onExportProgress(mExportFragment.getExported(), mExportFragment.getTotal());
         }
 
+        // Initialize the loader. Pass in the int ID constant defined above and pass in null for
+        // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
+        // because this activity implements the LoaderCallbacks interface).
+        // The loader checks the connection itself and onLoadFinished shows the error.
+        mloadermanager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
+
+        // Keep the saved filters fresh in the background so the next launch
+        // finds their data already stored. Scheduling is not needed for the first
+        // frame, so it is done off the main thread.
+        final Context appContext = getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                EarthquakeSync.scheduleSync(appContext);
+            }
+        });
 
         // Implementing swipeToRefresh Widget which will allow
         // us to refresh the list of earthquakes
@@ -159,8 +194,10 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
 
                     // As the loadingCircle is showing so we will hide the EmptyStateTextView
                     mEmptyStateTextView.setVisibility(View.GONE);
-                    // Restarting loader
-                    mloadermanager.restartLoader(EARTHQUAKE_LOADER_ID, null, EarthquakeActivity.this);
+                    // Restarting loader, asking it to skip the cached result
+                    Bundle args = new Bundle();
+                    args.putBoolean(KEY_FORCE_REFRESH, true);
+                    mloadermanager.restartLoader(EARTHQUAKE_LOADER_ID, args, EarthquakeActivity.this);
                 }
                 else {
                     // Clear the adapter to view the no Internet Connection TextView
@@ -181,43 +218,44 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             }
         });
 
-
-
+        StartupTrace.end("onCreate");
     }
 
     @Override
     public Loader<List<Earthquake>> onCreateLoader(int i, Bundle bundle) {
 
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String minMagnitude = sharedPrefs.getString(
-                getString(R.string.settings_min_magnitude_key),
-                getString(R.string.settings_min_magnitude_default));
-
-        String orderBy = sharedPrefs.getString(
-                getString(R.string.settings_order_by_key),
-                getString(R.string.settings_order_by_default)
-        );
+        // A swipe to refresh asks for new data, so the cached result is skipped
+        boolean forceRefresh = bundle != null && bundle.getBoolean(KEY_FORCE_REFRESH);
 
-        String noOfEarthquake = sharedPrefs.getString(
-                getString(R.string.setting_min_noOfEarthquake_key),
-                getString(R.string.setting_min_noOfEarthquake_default));
+        // Create a new loader for the saved filters, which it reads in the background
+        return new EarthquakeLoader(this, forceRefresh);
 
+    }
 
-        Uri baseUri = Uri.parse(USGS_REQUEST_URL);
-        Uri.Builder uriBuilder = baseUri.buildUpon();
-
-        uriBuilder.appendQueryParameter("format", "geojson");
-        uriBuilder.appendQueryParameter("limit", noOfEarthquake);
-        uriBuilder.appendQueryParameter("minmag", minMagnitude);
-        uriBuilder.appendQueryParameter("orderby", orderBy);
-
-        // Create a new loader for the given URL
-        return new EarthquakeLoader(this, uriBuilder.toString());
-
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+
+        // If the filters were changed in SettingsActivity then load the new query.
+        // The prefetch started by the settings screen has usually filled the cache already,
+        // so this doesn't wait for a network, the loader shows the error if it needs one.
+        // The format is left out, the same events come back in any format and the
+        // automatic format may have changed since the list was loaded.
+        if (mQueryUrl != null) {
+            String format = Uri.parse(mQueryUrl).getQueryParameter("format");
+            if (!mQueryUrl.equals(QueryUtils.buildRequestUrl(this, format))) {
+                mloadermanager.restartLoader(EARTHQUAKE_LOADER_ID, null, this);
+            }
+        }
     }
 
     @Override
     public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> data) {
+        EarthquakeLoader earthquakeLoader = (EarthquakeLoader) loader;
+
+        // Remember which query is displayed
+        mQueryUrl = earthquakeLoader.getUrl();
+
         // Clear the adapter of previous earthquake data
         mAdapter.clear();
 
@@ -227,8 +265,13 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             mAdapter.addAll(data);
         }
 
-        // Set empty state text to display "No earthquakes found."
-        mEmptyStateTextView.setText(R.string.no_earthquakes);
+        // Set empty state text to display "No earthquakes found.", or the
+        // No Internet connection error if the loader found no network
+        if (earthquakeLoader.isOffline()) {
+            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        } else {
+            mEmptyStateTextView.setText(R.string.no_earthquakes);
+        }
 
         // Make the loading circle invisible now
         ProgressBar loadingCircle = (ProgressBar) findViewById(R.id.loading_circle);
@@ -237,6 +280,7 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         // Telling mSwipeToRefresh that refreshing has been done and stop the animation
         mSwipeToRefresh.setRefreshing(false);
 
+        StartupTrace.finish(this);
     }
 
     @Override
@@ -263,26 +307,114 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             startActivity(settingsIntent);
             return true;
         }
+        if (id == R.id.action_export) {
+            showExportDialog();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // A preload the loader never took would otherwise be handed to the next launch
+        if (isFinishing()) {
+            EarthquakeLoader.cancelPreload();
+        }
+
+        // The export itself is kept by its retained fragment, only the dialog goes
+        if (mExportDialog != null) {
+            mExportDialog.dismiss();
+            mExportDialog = null;
+        }
+    }
+
     /**
-     * Function to check active network connection of device
-     * @return true if device is connected to internet else false
+     * Asks for the file format and exports the current query in it
      */
-    private boolean checkConnectivity() {
+    private void showExportDialog() {
+        if (mExportFragment != null && mExportFragment.isRunning()) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.export_title)
+                .setItems(R.array.export_format_labels, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        startExport(EXPORT_FORMATS[which]);
+                    }
+                })
+                .show();
+    }
 
-        // Getting an instance of ConnectivityManager class
-        ConnectivityManager cnnMgr = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    /**
+     * Starts exporting in the background behind a cancelable progress dialog
+     */
+    private void startExport(String format) {
+        mExportFragment = ExportFragment.newInstance(format);
+        getFragmentManager().beginTransaction()
+                .add(mExportFragment, ExportFragment.TAG)
+                .commit();
+        showExportProgress();
+    }
 
-        // Get details on the currently active default data network
-        NetworkInfo networkInfo = cnnMgr.getActiveNetworkInfo();
+    /**
+     * Shows the progress dialog of the running export
+     */
+    private void showExportProgress() {
+        mExportDialog = new ProgressDialog(this);
+        mExportDialog.setTitle(R.string.export_title);
+        mExportDialog.setMessage(getString(R.string.export_progress, 0));
+        mExportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mExportDialog.setIndeterminate(true);
+        mExportDialog.setCancelable(true);
+        mExportDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialogInterface) {
+                if (mExportFragment != null) {
+                    mExportFragment.cancel();
+                }
+            }
+        });
+        mExportDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int which) {
+                        dialogInterface.cancel();
+                    }
+                });
+        mExportDialog.show();
+    }
 
-        if(networkInfo != null && networkInfo.isConnected()) {
-            return true;
+    @Override
+    public void onExportProgress(int exported, int total) {
+        if (mExportDialog == null) {
+            return;
+        }
+        mExportDialog.setMessage(getString(R.string.export_progress, exported));
+        if (total > 0) {
+            mExportDialog.setIndeterminate(false);
+            mExportDialog.setMax(total);
+            mExportDialog.setProgress(exported);
+        }
+    }
+
+    @Override
+    public void onExportFinished() {
+        mExportFragment = null;
+        if (mExportDialog != null) {
+            mExportDialog.dismiss();
+            mExportDialog = null;
         }
+    }
 
-        return false;
+    /**
+     * Function to check active network connection of device
+     * @return true if device is connected to internet else false
+     */
+    private boolean checkConnectivity() {
+        return QueryUtils.isConnected(this);
     }
 }
@@ -0,0 +1,131 @@
+package com.example.android.quakereport;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small in-memory cache of earthquake lists keyed by their request url without the format,
+ * see {@link QueryUtils#getCacheKey(String)}.
+ * It is shared by the {@link EarthquakeLoader} and the {@link EarthquakePrefetcher}
+ * so a result prefetched from the settings screen can be shown without a new request.
+ *
+ * Everything put here is also written to the {@link EarthquakeStore}, so the
+ * {@link MemoryBudget} trims this cache first.
+ */
+public final class EarthquakeCache implements MemoryBudget.Tier {
+
+    /* Maximum number of query results kept in memory */
+    private static final int MAX_ENTRIES = 4;
+
+    /* Results older than this are not served by {@link #get(String)} */
+    public static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    private static final EarthquakeCache sInstance = new EarthquakeCache();
+
+    /* Access ordered map so the least recently used result is evicted first */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        mSizeInBytes -= eldest.getValue().mSizeInBytes;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /* Estimated memory held by all the entries */
+    private long mSizeInBytes;
+
+    private EarthquakeCache() {
+        MemoryBudget.getInstance().register(this);
+    }
+
+    /**
+     * Returns the cache shared by the whole app
+     */
+    public static EarthquakeCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the earthquakes cached for the url,
+     * or null if there is no entry or it is older than {@link #MAX_AGE_MILLIS}
+     */
+    public synchronized List<Earthquake> get(String url) {
+        String key = QueryUtils.getCacheKey(url);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.mStoredAt > MAX_AGE_MILLIS) {
+            mEntries.remove(key);
+            mSizeInBytes -= entry.mSizeInBytes;
+            return null;
+        }
+        return entry.mEarthquakes;
+    }
+
+    /**
+     * Stores the earthquakes fetched from the url
+     */
+    public void put(String url, List<Earthquake> earthquakes) {
+        if (url == null || earthquakes == null) {
+            return;
+        }
+        Entry entry = new Entry(earthquakes, SystemClock.elapsedRealtime(),
+                MemoryBudget.estimateSize(earthquakes));
+        String key = QueryUtils.getCacheKey(url);
+        synchronized (this) {
+            Entry replaced = mEntries.put(key, entry);
+            mSizeInBytes += entry.mSizeInBytes;
+            if (replaced != null) {
+                mSizeInBytes -= replaced.mSizeInBytes;
+            }
+        }
+        MemoryBudget.getInstance().enforce();
+    }
+
+    @Override
+    public String getName() {
+        return "resultCache";
+    }
+
+    @Override
+    public int getPriority() {
+        return MemoryBudget.PRIORITY_DISK_BACKED;
+    }
+
+    @Override
+    public synchronized long getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // Iteration follows access order, so the least recently used results go first
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSizeInBytes > maxBytes && iterator.hasNext()) {
+            mSizeInBytes -= iterator.next().mSizeInBytes;
+            iterator.remove();
+        }
+    }
+
+    /* A cached result along with the time it was stored and its estimated size */
+    private static class Entry {
+        final List<Earthquake> mEarthquakes;
+        final long mStoredAt;
+        final long mSizeInBytes;
+
+        Entry(List<Earthquake> earthquakes, long storedAt, long sizeInBytes) {
+            mEarthquakes = earthquakes;
+            mStoredAt = storedAt;
+            mSizeInBytes = sizeInBytes;
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Precomputed clusters of earthquake epicenters for every zoom level of a web mercator
+ * map, so an overview of tens of thousands of events can be drawn at any zoom level
+ * without clustering from scratch.
+ *
+ * The levels form a hierarchy. At MAX_ZOOM the events are grouped into clusters, and
+ * each coarser level groups the clusters of the level below it, so every cluster has one
+ * parent and its count and magnitude are those of its children. Each level keeps its
+ * clusters in a grid whose cells are as wide as the cluster radius at that level, so
+ * placing a cluster only looks at the 3 by 3 cells around it.
+ *
+ * {@link #setEarthquakes(List)} compares the new result with the indexed events by url
+ * and only inserts and removes the events that changed. The updates run on a background
+ * thread of the index, in small batches, so a reader waits for one batch at most.
+ */
+public final class EarthquakeClusterIndex implements MemoryBudget.Tier {
+
+    /* Zoom levels that are indexed */
+    public static final int MIN_ZOOM = 0;
+    public static final int MAX_ZOOM = 16;
+
+    /* Cluster radius in pixels, on tiles of TILE_SIZE pixels */
+    private static final double RADIUS_PIXELS = 40;
+    private static final double TILE_SIZE = 256;
+
+    /* Latitude beyond which web mercator is clamped */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /* Rough size of a cluster object with its grid slot */
+    private static final long CLUSTER_BYTES = 96;
+
+    /* Events inserted or removed under the lock at once */
+    private static final int BATCH_SIZE = 256;
+
+    private static final EarthquakeClusterIndex sInstance = new EarthquakeClusterIndex();
+
+    /* One level per zoom, from MIN_ZOOM to MAX_ZOOM */
+    private Level[] mLevels = createLevels();
+
+    /* Indexed events by url */
+    private Map<String, Event> mEvents = new HashMap<>();
+
+    /* Number of clusters over every level */
+    private long mClusterCount;
+
+    /* The last result set, the updates bring the index to it */
+    private List<Earthquake> mEarthquakes = new ArrayList<>();
+
+    /* True when a trim emptied the index and no update was queued since */
+    private boolean mStale;
+
+    /* Bumped by a trim, so an update running at the time stops */
+    private int mGeneration;
+
+    /* Runs the updates one after the other, off the caller's thread */
+    private final ExecutorService mUpdateExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * A group of nearby epicenters at one zoom level
+     */
+    public static class Cluster {
+
+        /* Position in web mercator units, from 0 to 1 */
+        private double mX;
+        private double mY;
+
+        private int mCount;
+        private double mMaxMagnitude = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Returns latitude of the center of the cluster
+         */
+        public double getLatitude() {
+            return yToLatitude(mY);
+        }
+
+        /**
+         * Returns longitude of the center of the cluster
+         */
+        public double getLongitude() {
+            return mX * 360 - 180;
+        }
+
+        /**
+         * Returns number of earthquakes in the cluster
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns magnitude of the strongest earthquake in the cluster
+         */
+        public double getMaxMagnitude() {
+            return mMaxMagnitude;
+        }
+    }
+
+    /* A cluster inside the index, linked to the levels above and below */
+    private static class Node {
+        double mX;
+        double mY;
+        int mCount;
+        double mMaxMagnitude = Double.NEGATIVE_INFINITY;
+
+        Node mParent;
+
+        /* Clusters of the level below, or null at MAX_ZOOM */
+        List<Node> mChildren;
+
+        /* Events of a MAX_ZOOM cluster, or null above it */
+        List<Event> mEvents;
+
+        /* Position in the mClusters list of its level */
+        int mIndex;
+    }
+
+    /* An indexed earthquake and the MAX_ZOOM cluster holding it */
+    private static class Event {
+        final Earthquake mEarthquake;
+        final double mX;
+        final double mY;
+        Node mLeaf;
+
+        Event(Earthquake earthquake) {
+            mEarthquake = earthquake;
+            mX = longitudeToX(earthquake.getmLongitude());
+            mY = latitudeToY(earthquake.getmLatitude());
+        }
+    }
+
+    /* The clusters of one zoom level, bucketed in a grid */
+    private static class Level {
+        final double mRadius;
+        final Map<Long, List<Node>> mCells = new HashMap<>();
+        final List<Node> mClusters = new ArrayList<>();
+
+        Level(int zoom) {
+            mRadius = RADIUS_PIXELS / (TILE_SIZE * Math.pow(2, zoom));
+        }
+
+        long cellOf(double coordinate) {
+            return (long) Math.floor(coordinate / mRadius);
+        }
+
+        long cellKey(long column, long row) {
+            // Up to MAX_ZOOM there are fewer than 2^21 rows, even counting the neighbours
+            // outside the map. Multiplying by an odd constant keeps keys unique and spreads
+            // the bits, otherwise HashMap buckets only see the row and neighbours collide.
+            return ((column << 21) + row + 1) * 0x9E3779B97F4A7C15L;
+        }
+
+        long cellKey(double x, double y) {
+            return cellKey(cellOf(x), cellOf(y));
+        }
+    }
+
+    private EarthquakeClusterIndex() {
+        MemoryBudget.getInstance().register(this);
+    }
+
+    /**
+     * Returns the index shared by the whole app
+     */
+    public static EarthquakeClusterIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Brings the index to a new result. The list must not be changed afterwards.
+     * This returns at once, the changed events are inserted and removed in the background.
+     */
+    public synchronized void setEarthquakes(List<Earthquake> earthquakes) {
+        mEarthquakes = earthquakes;
+        mStale = false;
+        queueUpdate(earthquakes);
+    }
+
+    /**
+     * Returns the clusters of the zoom level inside the bounding box.
+     * The box does not wrap around the antimeridian.
+     *
+     * After a trim the index is filled again in the background, and until then
+     * this returns the clusters indexed so far.
+     */
+    public synchronized List<Cluster> getClusters(double minLatitude, double minLongitude,
+                                                  double maxLatitude, double maxLongitude,
+                                                  int zoom) {
+        if (mStale) {
+            mStale = false;
+            queueUpdate(mEarthquakes);
+        }
+
+        Level level = mLevels[Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom)) - MIN_ZOOM];
+        double minX = longitudeToX(minLongitude);
+        double maxX = longitudeToX(maxLongitude);
+        // y grows towards the south
+        double minY = latitudeToY(maxLatitude);
+        double maxY = latitudeToY(minLatitude);
+
+        List<Cluster> result = new ArrayList<>();
+        long firstColumn = level.cellOf(minX);
+        long lastColumn = level.cellOf(maxX);
+        long firstRow = level.cellOf(minY);
+        long lastRow = level.cellOf(maxY);
+        if ((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) < level.mClusters.size()) {
+            // Small box, only look at the cells it covers
+            for (long column = firstColumn; column <= lastColumn; column++) {
+                for (long row = firstRow; row <= lastRow; row++) {
+                    List<Node> cell = level.mCells.get(level.cellKey(column, row));
+                    if (cell != null) {
+                        addInside(cell, minX, minY, maxX, maxY, result);
+                    }
+                }
+            }
+        } else {
+            addInside(level.mClusters, minX, minY, maxX, maxY, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns every cluster of the zoom level
+     */
+    public List<Cluster> getClusters(int zoom) {
+        return getClusters(-90, -180, 90, 180, zoom);
+    }
+
+    /**
+     * Returns number of indexed earthquakes. While an update runs this counts the
+     * events indexed so far.
+     */
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    @Override
+    public String getName() {
+        return "clusterIndex";
+    }
+
+    @Override
+    public int getPriority() {
+        // Rebuilt from the result the list is showing
+        return MemoryBudget.PRIORITY_REBUILT;
+    }
+
+    @Override
+    public synchronized long getSizeInBytes() {
+        return (mClusterCount + mEvents.size()) * CLUSTER_BYTES;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // Clusters can't be taken apart again, so the index is emptied as a whole
+        // and filled again from the result when next asked for
+        if (getSizeInBytes() > maxBytes) {
+            mLevels = createLevels();
+            mEvents = new HashMap<>();
+            mClusterCount = 0;
+            mStale = true;
+            mGeneration++;
+        }
+    }
+
+    private static Level[] createLevels() {
+        Level[] levels = new Level[MAX_ZOOM - MIN_ZOOM + 1];
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            levels[zoom - MIN_ZOOM] = new Level(zoom);
+        }
+        return levels;
+    }
+
+    private void queueUpdate(final List<Earthquake> earthquakes) {
+        mUpdateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                update(earthquakes);
+                MemoryBudget.getInstance().enforce();
+            }
+        });
+    }
+
+    /**
+     * Removes the indexed events that are missing from the result or changed in it and
+     * inserts the new and changed ones. It stops when a newer result is set or a trim
+     * empties the index, the update queued by them continues from where this one was.
+     */
+    private void update(List<Earthquake> earthquakes) {
+        List<Event> removed = new ArrayList<>();
+        List<Earthquake> added = new ArrayList<>();
+        int generation;
+        synchronized (this) {
+            if (mEarthquakes != earthquakes) {
+                return;
+            }
+            generation = mGeneration;
+            Map<String, Earthquake> current = new HashMap<>();
+            for (Earthquake earthquake : earthquakes) {
+                if (earthquake.hasCoordinates() && !current.containsKey(earthquake.getmUrl())) {
+                    current.put(earthquake.getmUrl(), earthquake);
+                }
+            }
+            for (Event event : mEvents.values()) {
+                Earthquake earthquake = current.get(event.mEarthquake.getmUrl());
+                if (earthquake == null || !isSame(event.mEarthquake, earthquake)) {
+                    removed.add(event);
+                }
+            }
+            for (Earthquake earthquake : current.values()) {
+                Event event = mEvents.get(earthquake.getmUrl());
+                if (event == null || !isSame(event.mEarthquake, earthquake)) {
+                    added.add(earthquake);
+                }
+            }
+        }
+
+        for (int start = 0; start < removed.size(); start += BATCH_SIZE) {
+            synchronized (this) {
+                if (mEarthquakes != earthquakes || mGeneration != generation) {
+                    return;
+                }
+                for (Event event : removed.subList(start,
+                        Math.min(start + BATCH_SIZE, removed.size()))) {
+                    remove(event);
+                }
+            }
+        }
+        for (int start = 0; start < added.size(); start += BATCH_SIZE) {
+            synchronized (this) {
+                if (mEarthquakes != earthquakes || mGeneration != generation) {
+                    return;
+                }
+                for (Earthquake earthquake : added.subList(start,
+                        Math.min(start + BATCH_SIZE, added.size()))) {
+                    insert(new Event(earthquake));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the earthquake is drawn the same in both results
+     */
+    private static boolean isSame(Earthquake indexed, Earthquake earthquake) {
+        return indexed == earthquake
+                || (indexed.getmLatitude() == earthquake.getmLatitude()
+                && indexed.getmLongitude() == earthquake.getmLongitude()
+                && indexed.getmMagnitude() == earthquake.getmMagnitude());
+    }
+
+    /**
+     * Adds the event to the nearest MAX_ZOOM cluster within the radius, or a new one. A new
+     * cluster is in turn placed in the nearest cluster of the level above, and so on until
+     * a level where it joins an existing cluster. Every level above that only counts it.
+     */
+    private void insert(Event event) {
+        Event replaced = mEvents.get(event.mEarthquake.getmUrl());
+        if (replaced != null) {
+            remove(replaced);
+        }
+        mEvents.put(event.mEarthquake.getmUrl(), event);
+        double magnitude = event.mEarthquake.getmMagnitude();
+
+        Level leafLevel = mLevels[MAX_ZOOM - MIN_ZOOM];
+        Node node = findNearest(leafLevel, event.mX, event.mY);
+        boolean created = node == null;
+        if (created) {
+            node = createNode(leafLevel, event.mX, event.mY);
+            node.mEvents = new ArrayList<>(2);
+        }
+        node.mEvents.add(event);
+        event.mLeaf = node;
+        addPoint(leafLevel, node, event.mX, event.mY, magnitude);
+
+        for (int zoom = MAX_ZOOM - 1; zoom >= MIN_ZOOM; zoom--) {
+            Level level = mLevels[zoom - MIN_ZOOM];
+            Node parent;
+            if (created) {
+                // The new cluster of the level below needs a parent on this level
+                parent = findNearest(level, node.mX, node.mY);
+                created = parent == null;
+                if (created) {
+                    parent = createNode(level, node.mX, node.mY);
+                    parent.mChildren = new ArrayList<>(2);
+                }
+                parent.mChildren.add(node);
+                node.mParent = parent;
+            } else {
+                parent = node.mParent;
+            }
+            addPoint(level, parent, event.mX, event.mY, magnitude);
+            node = parent;
+        }
+    }
+
+    /**
+     * Takes the event out of its cluster on every level. Clusters left empty are removed
+     * along with their link to the level above.
+     */
+    private void remove(Event event) {
+        mEvents.remove(event.mEarthquake.getmUrl());
+        double magnitude = event.mEarthquake.getmMagnitude();
+        Node node = event.mLeaf;
+        node.mEvents.remove(event);
+        for (int zoom = MAX_ZOOM; zoom >= MIN_ZOOM; zoom--) {
+            Level level = mLevels[zoom - MIN_ZOOM];
+            Node parent = node.mParent;
+            if (node.mCount == 1) {
+                deleteNode(level, node);
+                if (parent != null) {
+                    parent.mChildren.remove(node);
+                }
+            } else {
+                removePoint(level, node, event.mX, event.mY, magnitude);
+            }
+            node = parent;
+        }
+    }
+
+    private Node createNode(Level level, double x, double y) {
+        Node node = new Node();
+        node.mX = x;
+        node.mY = y;
+        node.mIndex = level.mClusters.size();
+        level.mClusters.add(node);
+        putInCell(level, node);
+        mClusterCount++;
+        return node;
+    }
+
+    private void deleteNode(Level level, Node node) {
+        // Swap the last cluster into the slot so the removal doesn't shift the list
+        Node last = level.mClusters.remove(level.mClusters.size() - 1);
+        if (last != node) {
+            level.mClusters.set(node.mIndex, last);
+            last.mIndex = node.mIndex;
+        }
+        removeFromCell(level, node, level.cellKey(node.mX, node.mY));
+        mClusterCount--;
+    }
+
+    /**
+     * Counts a point in the cluster and moves its center to the average of its points
+     */
+    private static void addPoint(Level level, Node node, double x, double y, double magnitude) {
+        moveTo(level, node, (node.mX * node.mCount + x) / (node.mCount + 1),
+                (node.mY * node.mCount + y) / (node.mCount + 1));
+        node.mCount++;
+        node.mMaxMagnitude = Math.max(node.mMaxMagnitude, magnitude);
+    }
+
+    /**
+     * Takes a point out of a cluster holding more than that point
+     */
+    private static void removePoint(Level level, Node node, double x, double y,
+                                    double magnitude) {
+        moveTo(level, node, (node.mX * node.mCount - x) / (node.mCount - 1),
+                (node.mY * node.mCount - y) / (node.mCount - 1));
+        node.mCount--;
+        if (magnitude >= node.mMaxMagnitude) {
+            // It may have been the strongest, so ask the level below
+            double maxMagnitude = Double.NEGATIVE_INFINITY;
+            if (node.mEvents != null) {
+                for (Event event : node.mEvents) {
+                    maxMagnitude = Math.max(maxMagnitude, event.mEarthquake.getmMagnitude());
+                }
+            } else {
+                for (Node child : node.mChildren) {
+                    maxMagnitude = Math.max(maxMagnitude, child.mMaxMagnitude);
+                }
+            }
+            node.mMaxMagnitude = maxMagnitude;
+        }
+    }
+
+    private static void moveTo(Level level, Node node, double x, double y) {
+        long oldKey = level.cellKey(node.mX, node.mY);
+        node.mX = x;
+        node.mY = y;
+        if (level.cellKey(x, y) != oldKey) {
+            removeFromCell(level, node, oldKey);
+            putInCell(level, node);
+        }
+    }
+
+    /**
+     * Returns the cluster closest to the point within the level radius, or null.
+     * The cells are as wide as the radius, so the 3 by 3 cells around the point hold
+     * every cluster in reach.
+     */
+    private static Node findNearest(Level level, double x, double y) {
+        Node nearest = null;
+        double nearestDistance = level.mRadius * level.mRadius;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                List<Node> cell = level.mCells.get(
+                        level.cellKey(level.cellOf(x) + dx, level.cellOf(y) + dy));
+                if (cell == null) {
+                    continue;
+                }
+                for (Node node : cell) {
+                    double distance = (node.mX - x) * (node.mX - x)
+                            + (node.mY - y) * (node.mY - y);
+                    if (distance <= nearestDistance) {
+                        nearest = node;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static void putInCell(Level level, Node node) {
+        long key = level.cellKey(node.mX, node.mY);
+        List<Node> cell = level.mCells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>(2);
+            level.mCells.put(key, cell);
+        }
+        cell.add(node);
+    }
+
+    private static void removeFromCell(Level level, Node node, long key) {
+        List<Node> cell = level.mCells.get(key);
+        cell.remove(node);
+        if (cell.isEmpty()) {
+            level.mCells.remove(key);
+        }
+    }
+
+    /**
+     * Adds copies of the clusters inside the box to result, so callers don't see
+     * the levels change
+     */
+    private static void addInside(List<Node> clusters, double minX, double minY,
+                                  double maxX, double maxY, List<Cluster> result) {
+        for (Node node : clusters) {
+            if (node.mX >= minX && node.mX <= maxX
+                    && node.mY >= minY && node.mY <= maxY) {
+                Cluster copy = new Cluster();
+                copy.mX = node.mX;
+                copy.mY = node.mY;
+                copy.mCount = node.mCount;
+                copy.mMaxMagnitude = node.mMaxMagnitude;
+                result.add(copy);
+            }
+        }
+    }
+
+    private static double longitudeToX(double longitude) {
+        return longitude / 360 + 0.5;
+    }
+
+    private static double latitudeToY(double latitude) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sin = Math.sin(Math.toRadians(clamped));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static double yToLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.android.quakereport;
+
+import java.util.List;
+
+/**
+ * Turns the body of a USGS response into a list of {@link Earthquake} objects.
+ * Each implementation handles one of the USGS "format" query parameter values.
+ */
+public interface EarthquakeDecoder {
+
+    /**
+     * Returns the value passed as the "format" query parameter for this decoder
+     */
+    String getFormat();
+
+    /**
+     * Returns the list of earthquakes contained in the response,
+     * or null if the response is empty
+     */
+    List<Earthquake> decode(String response);
+}
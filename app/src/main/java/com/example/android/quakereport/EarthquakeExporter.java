@@ -0,0 +1,423 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Exports the results of the current query to a CSV or GeoJSON file for offline work.
+ *
+ * Events are never collected in a list. They are read one at a time from the stored
+ * result of the query, or else from a GeoJSON response streamed from USGS, and written
+ * straight to the file through a buffered writer, so memory use doesn't grow with the
+ * number of events.
+ */
+public final class EarthquakeExporter {
+
+    private static final String LOG_TAG = EarthquakeExporter.class.getSimpleName();
+
+    /* Formats of the exported file */
+    public static final String FORMAT_CSV = CsvEarthquakeDecoder.FORMAT;
+    public static final String FORMAT_GEOJSON = GeoJsonEarthquakeDecoder.FORMAT;
+
+    /* Directory inside the app files dir holding the exports */
+    private static final String DIRECTORY = "exports";
+
+    /* Progress is reported every PROGRESS_INTERVAL events */
+    private static final int PROGRESS_INTERVAL = 500;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Pattern of the time column, the one USGS uses in its csv responses */
+    private static final String TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+    /**
+     * Follows an export while it runs. Called on the exporting thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called every few hundred events
+         *
+         * @param total number of events the server announced, -1 if unknown
+         */
+        void onProgress(int exported, int total);
+
+        /**
+         * Checked between events, returning true stops the export
+         */
+        boolean isCancelled();
+    }
+
+    /* Writes events in one file format */
+    private interface EventWriter {
+        void begin() throws IOException;
+
+        void write(Earthquake earthquake) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    private final Context mContext;
+
+    /**
+     * @param context any context of the app
+     */
+    public EarthquakeExporter(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Exports the results of the query built from the saved filters. This blocks
+     * for as long as the download takes, so call it off the main thread.
+     *
+     * @param format FORMAT_CSV or FORMAT_GEOJSON
+     * @return the exported file, or null if the export was cancelled
+     */
+    public File export(String format, Listener listener) throws IOException {
+        File directory = new File(getBaseDirectory(), DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        SimpleDateFormat nameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+        File file = new File(directory, "earthquakes-" + nameFormat.format(new Date())
+                + (FORMAT_CSV.equals(format) ? ".csv" : ".geojson"));
+
+        // Write to a temporary file first so a cancelled or failed export leaves nothing behind
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            // The stored result of the displayed query is read first, it saves a download
+            String queryUrl = QueryUtils.buildRequestUrl(mContext, FORMAT_GEOJSON);
+            File stored = new EarthquakeStore(mContext)
+                    .getFile(queryUrl, EarthquakeSync.STORE_MAX_AGE_MILLIS);
+            boolean exported = false;
+            if (stored != null) {
+                try {
+                    exported = copy(new FileInputStream(stored), QueryUtils.getCacheKey(queryUrl),
+                            temp, format, listener);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem reading the stored earthquakes, downloading them", e);
+                }
+            }
+
+            // Otherwise the same query is downloaded as GeoJSON, whatever format the list uses
+            if (!exported && !listener.isCancelled()) {
+                URL url = new URL(queryUrl);
+                copy(HttpTransport.getInstance().open(url), null, temp, format, listener);
+            }
+
+            if (listener.isCancelled()) {
+                return null;
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            return file;
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                Log.e(LOG_TAG, "Could not delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Returns the directory exports are written to, on external storage when there is one
+     * so the files can be copied off the device
+     */
+    private File getBaseDirectory() {
+        File directory = mContext.getExternalFilesDir(null);
+        return directory != null ? directory : mContext.getFilesDir();
+    }
+
+    /**
+     * Streams the GeoJSON document of inputStream into file, then closes inputStream
+     *
+     * @param expectedUrl url the root "url" of a stored document has to match, null to skip
+     *                    the check
+     * @return false if the document belongs to another url, nothing is written then
+     */
+    private static boolean copy(InputStream inputStream, String expectedUrl, File file,
+                                String format, Listener listener) throws IOException {
+        JsonReader reader = new JsonReader(
+                new BufferedReader(new InputStreamReader(inputStream, UTF_8), BUFFER_SIZE));
+        Writer output = null;
+        try {
+            int total = -1;
+            boolean urlChecked = expectedUrl == null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("url") && expectedUrl != null) {
+                    if (!expectedUrl.equals(reader.nextString())) {
+                        return false;
+                    }
+                    urlChecked = true;
+                } else if (name.equals("metadata")) {
+                    // USGS sends the metadata before the features
+                    total = readCount(reader);
+                } else if (name.equals("features")) {
+                    if (!urlChecked) {
+                        return false;
+                    }
+                    output = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(file), UTF_8), BUFFER_SIZE);
+                    EventWriter writer = FORMAT_CSV.equals(format)
+                            ? new CsvWriter(output) : new GeoJsonWriter(output);
+                    writer.begin();
+                    int exported = copyFeatures(reader, writer, total, listener);
+                    if (listener.isCancelled()) {
+                        return true;
+                    }
+                    writer.end();
+                    Log.v(LOG_TAG, "Exported " + exported + " earthquakes to " + file);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return output != null;
+        } finally {
+            reader.close();
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the features array one feature at a time, handing each event to the writer
+     *
+     * @return number of events written
+     */
+    private static int copyFeatures(JsonReader reader, EventWriter writer, int total,
+                                    Listener listener) throws IOException {
+        int exported = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (listener.isCancelled()) {
+                return exported;
+            }
+            Earthquake earthquake = readFeature(reader);
+            if (earthquake != null) {
+                writer.write(earthquake);
+                exported++;
+                if (exported % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(exported, total);
+                }
+            }
+        }
+        reader.endArray();
+        listener.onProgress(exported, total);
+        return exported;
+    }
+
+    /**
+     * Returns the "count" of the metadata object, or -1 if it has none
+     */
+    private static int readCount(JsonReader reader) throws IOException {
+        int count = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("count") && reader.peek() == JsonToken.NUMBER) {
+                count = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    /**
+     * Reads one feature, or returns null for a feature without magnitude or url,
+     * which is skipped
+     */
+    private static Earthquake readFeature(JsonReader reader) throws IOException {
+        double magnitude = Double.NaN;
+        String location = null;
+        long time = 0;
+        String url = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("properties") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String property = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                    } else if (property.equals("mag")) {
+                        magnitude = reader.nextDouble();
+                    } else if (property.equals("place")) {
+                        location = reader.nextString();
+                    } else if (property.equals("time")) {
+                        time = reader.nextLong();
+                    } else if (property.equals("url")) {
+                        url = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("geometry") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("coordinates")
+                            && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        // [longitude, latitude, depth]
+                        reader.beginArray();
+                        for (int i = 0; reader.hasNext(); i++) {
+                            if (i == 0) {
+                                longitude = reader.nextDouble();
+                            } else if (i == 1) {
+                                latitude = reader.nextDouble();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (Double.isNaN(magnitude) || url == null) {
+            return null;
+        }
+        return new Earthquake(magnitude, location, time, url, latitude, longitude);
+    }
+
+    /**
+     * Writes events as csv, with the column names of the USGS csv format
+     */
+    private static class CsvWriter implements EventWriter {
+
+        private final Writer mOutput;
+        private final SimpleDateFormat mTimeFormat = new SimpleDateFormat(TIME_PATTERN, Locale.US);
+
+        CsvWriter(Writer output) {
+            mOutput = output;
+            mTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        public void begin() throws IOException {
+            mOutput.write("time,latitude,longitude,mag,place,url\n");
+        }
+
+        @Override
+        public void write(Earthquake earthquake) throws IOException {
+            mOutput.write(mTimeFormat.format(new Date(earthquake.getmTimeInMilliseconds())));
+            mOutput.write(',');
+            if (earthquake.hasCoordinates()) {
+                mOutput.write(String.valueOf(earthquake.getmLatitude()));
+                mOutput.write(',');
+                mOutput.write(String.valueOf(earthquake.getmLongitude()));
+            } else {
+                mOutput.write(',');
+            }
+            mOutput.write(',');
+            mOutput.write(String.valueOf(earthquake.getmMagnitude()));
+            mOutput.write(',');
+            writeQuoted(earthquake.getmLocation());
+            mOutput.write(',');
+            writeQuoted(earthquake.getmUrl());
+            mOutput.write('\n');
+        }
+
+        @Override
+        public void end() throws IOException {
+            mOutput.flush();
+        }
+
+        /**
+         * Writes the value in double quotes, escaping quotes inside it, because
+         * places like "5km N of Cairo, Egypt" contain commas
+         */
+        private void writeQuoted(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            mOutput.write('"');
+            mOutput.write(value.replace("\"", "\"\""));
+            mOutput.write('"');
+        }
+    }
+
+    /**
+     * Writes events as a GeoJSON FeatureCollection, in the layout USGS uses
+     */
+    private static class GeoJsonWriter implements EventWriter {
+
+        private final JsonWriter mWriter;
+
+        GeoJsonWriter(Writer output) {
+            mWriter = new JsonWriter(output);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            mWriter.beginObject();
+            mWriter.name("type").value("FeatureCollection");
+            mWriter.name("features").beginArray();
+        }
+
+        @Override
+        public void write(Earthquake earthquake) throws IOException {
+            mWriter.beginObject();
+            mWriter.name("type").value("Feature");
+            mWriter.name("properties").beginObject();
+            mWriter.name("mag").value(earthquake.getmMagnitude());
+            mWriter.name("place").value(earthquake.getmLocation());
+            mWriter.name("time").value(earthquake.getmTimeInMilliseconds());
+            mWriter.name("url").value(earthquake.getmUrl());
+            mWriter.endObject();
+            if (earthquake.hasCoordinates()) {
+                mWriter.name("geometry").beginObject();
+                mWriter.name("type").value("Point");
+                mWriter.name("coordinates").beginArray()
+                        .value(earthquake.getmLongitude())
+                        .value(earthquake.getmLatitude())
+                        .endArray();
+                mWriter.endObject();
+            }
+            mWriter.endObject();
+        }
+
+        @Override
+        public void end() throws IOException {
+            mWriter.endArray();
+            mWriter.endObject();
+            mWriter.flush();
+        }
+    }
+}
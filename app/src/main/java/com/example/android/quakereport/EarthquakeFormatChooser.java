@@ -0,0 +1,195 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Picks the response format for the "auto" download format setting.
+ *
+ * Every response decoded by {@link QueryUtils} is recorded with its size, the time it
+ * took to arrive and the time it took to decode. The cost of an event in a format is
+ * its average size divided by the measured network throughput, plus its average decode
+ * time. The throughput is shared by the formats, so a format that is not in use is still
+ * judged against the current network.
+ *
+ * Responses of any size are measured, so the default limit of a few events is enough.
+ * Small responses spend most of their time on latency, which makes the throughput look
+ * low and favours the smaller format, the one that also loses least on a slow network.
+ *
+ * A format that was never measured becomes the choice until it is measured, so every
+ * caller asks for the same format meanwhile. After that the cheaper format is used, but
+ * the current one is only dropped when the other is clearly cheaper. The caches key
+ * results without the format (see {@link QueryUtils#getCacheKey(String)}), so a change
+ * doesn't lose them either way.
+ */
+public final class EarthquakeFormatChooser implements QueryUtils.ResponseListener {
+
+    private static final String LOG_TAG = EarthquakeFormatChooser.class.getSimpleName();
+
+    /* Formats that can be chosen, the first one is tried first */
+    private static final String[] FORMATS = {
+            GeoJsonEarthquakeDecoder.FORMAT, CsvEarthquakeDecoder.FORMAT};
+
+    /* Weight of a new sample in the moving averages */
+    private static final double SMOOTHING = 0.3;
+
+    /* The other format has to be this much cheaper before the choice changes */
+    private static final double SWITCH_RATIO = 0.8;
+
+    /* Preferences file holding the measurements */
+    private static final String PREFS_NAME = "format_chooser";
+    private static final String KEY_THROUGHPUT = "bytes_per_milli";
+    private static final String KEY_CHOICE = "choice";
+    private static final String KEY_BYTES_PER_EVENT = "bytes_per_event_";
+    private static final String KEY_DECODE_MILLIS_PER_EVENT = "decode_millis_per_event_";
+
+    private static final EarthquakeFormatChooser sInstance = new EarthquakeFormatChooser();
+
+    /* Set by the first choose call, the measurements are loaded from and saved to it */
+    private SharedPreferences mPreferences;
+
+    /* Network throughput in bytes per millisecond, 0 until measured */
+    private double mBytesPerMilli;
+
+    /* Averages per format, in the order of FORMATS, 0 until measured */
+    private final double[] mBytesPerEvent = new double[FORMATS.length];
+    private final double[] mDecodeMillisPerEvent = new double[FORMATS.length];
+
+    /* Format currently chosen */
+    private String mChoice = FORMATS[0];
+
+    private EarthquakeFormatChooser() {
+    }
+
+    /**
+     * Returns the chooser shared by the whole app
+     */
+    public static EarthquakeFormatChooser getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the format the next request should use
+     */
+    public synchronized String choose(Context context) {
+        if (mPreferences == null) {
+            mPreferences = context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            load();
+        }
+
+        // Measure every format once before comparing them. The format being measured is
+        // the choice meanwhile, so requests made before its first response agree on it.
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (mBytesPerEvent[i] == 0) {
+                if (!FORMATS[i].equals(mChoice)) {
+                    mChoice = FORMATS[i];
+                    Log.i(LOG_TAG, "Measuring " + mChoice + ", " + this);
+                    save();
+                }
+                return mChoice;
+            }
+        }
+
+        int current = indexOf(mChoice);
+        int cheapest = current;
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (getCostPerEvent(i) < getCostPerEvent(cheapest)) {
+                cheapest = i;
+            }
+        }
+        if (cheapest != current && getCostPerEvent(cheapest) < getCostPerEvent(current) * SWITCH_RATIO) {
+            mChoice = FORMATS[cheapest];
+            Log.i(LOG_TAG, "Switched from " + FORMATS[current] + ", " + this);
+            save();
+        }
+        return mChoice;
+    }
+
+    /**
+     * Records a decoded response. This may be on any thread.
+     *
+     * @param bytes          size of the response body
+     * @param networkMillis  time from sending the request to reading the last byte
+     * @param decodeMillis   time taken to decode the body
+     * @param events         number of events decoded
+     */
+    @Override
+    public synchronized void onResponse(String format, long bytes, long networkMillis,
+                                        long decodeMillis, int events) {
+        int index = indexOf(format);
+        // Without events the cost of one can't be told
+        if (index < 0 || events == 0) {
+            return;
+        }
+        mBytesPerMilli = average(mBytesPerMilli, (double) bytes / Math.max(networkMillis, 1));
+        mBytesPerEvent[index] = average(mBytesPerEvent[index], (double) bytes / events);
+        mDecodeMillisPerEvent[index] = average(mDecodeMillisPerEvent[index],
+                (double) decodeMillis / events);
+        save();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stats = new StringBuilder("choice=").append(mChoice)
+                .append(" bytesPerMilli=").append(String.format("%.1f", mBytesPerMilli));
+        for (int i = 0; i < FORMATS.length; i++) {
+            stats.append(' ').append(FORMATS[i])
+                    .append("BytesPerEvent=").append(String.format("%.0f", mBytesPerEvent[i]))
+                    .append(' ').append(FORMATS[i])
+                    .append("MillisPerEvent=").append(String.format("%.4f", getCostPerEvent(i)));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Returns the estimated milliseconds to download and decode one event in the format
+     */
+    private double getCostPerEvent(int index) {
+        double downloadMillis = mBytesPerMilli == 0 ? 0 : mBytesPerEvent[index] / mBytesPerMilli;
+        return downloadMillis + mDecodeMillisPerEvent[index];
+    }
+
+    private static double average(double average, double sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private static int indexOf(String format) {
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (FORMATS[i].equals(format)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void load() {
+        mBytesPerMilli = mPreferences.getFloat(KEY_THROUGHPUT, 0);
+        for (int i = 0; i < FORMATS.length; i++) {
+            mBytesPerEvent[i] = mPreferences.getFloat(KEY_BYTES_PER_EVENT + FORMATS[i], 0);
+            mDecodeMillisPerEvent[i] =
+                    mPreferences.getFloat(KEY_DECODE_MILLIS_PER_EVENT + FORMATS[i], 0);
+        }
+        String choice = mPreferences.getString(KEY_CHOICE, FORMATS[0]);
+        mChoice = indexOf(choice) < 0 ? FORMATS[0] : choice;
+    }
+
+    /**
+     * Saves the measurements, unless nothing chose a format yet
+     */
+    private void save() {
+        if (mPreferences == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPreferences.edit()
+                .putFloat(KEY_THROUGHPUT, (float) mBytesPerMilli)
+                .putString(KEY_CHOICE, mChoice);
+        for (int i = 0; i < FORMATS.length; i++) {
+            editor.putFloat(KEY_BYTES_PER_EVENT + FORMATS[i], (float) mBytesPerEvent[i]);
+            editor.putFloat(KEY_DECODE_MILLIS_PER_EVENT + FORMATS[i],
+                    (float) mDecodeMillisPerEvent[i]);
+        }
+        editor.apply();
+    }
+}
@@ -2,10 +2,17 @@ package com.example.android.quakereport;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by Anku on 3/26/2017.
@@ -23,6 +30,42 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
     /** Query URL */
     private String mUrl;
 
+    /** True to skip the {@link EarthquakeCache} and always query the server */
+    private boolean mForceRefresh;
+
+    /** True to build the query URL from the saved filters in the background */
+    private boolean mUrlFromPreferences;
+
+    /** True if the last load found no network connection */
+    private boolean mOffline;
+
+    /** Load started by {@link #preload(Context)}, taken by the next loader */
+    private static Future<Preload> sPreload;
+
+    /** A preload not taken this long after it finished is outdated and dropped */
+    private static final long PRELOAD_MAX_AGE_MILLIS = 30 * 1000;
+
+    /** Counts a finished preload in the {@link MemoryBudget}, which may drop it */
+    private static final PreloadTier sPreloadTier = new PreloadTier();
+
+    /** Counts the last result of this loader in the {@link MemoryBudget} */
+    private final ResultTier mResultTier = new ResultTier();
+
+    /** Result of a preload, with the URL it was built for */
+    private static class Preload {
+        final String mUrl;
+        final boolean mOffline;
+        final List<Earthquake> mEarthquakes;
+        final long mLoadedAt;
+
+        Preload(String url, boolean offline, List<Earthquake> earthquakes) {
+            mUrl = url;
+            mOffline = offline;
+            mEarthquakes = earthquakes;
+            mLoadedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
     /**
      * Constructs a new {@link EarthquakeLoader}.
      *
@@ -30,8 +73,111 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
      * @param url to load data from
      */
     public EarthquakeLoader(Context context, String url) {
+        this(context, url, false);
+    }
+
+    /**
+     * Constructs a new {@link EarthquakeLoader}.
+     *
+     * @param context of the activity
+     * @param url to load data from
+     * @param forceRefresh true to ignore a cached result for the url
+     */
+    public EarthquakeLoader(Context context, String url, boolean forceRefresh) {
         super(context);
         this.mUrl = url;
+        this.mForceRefresh = forceRefresh;
+        MemoryBudget.getInstance().register(mResultTier);
+    }
+
+    /**
+     * Constructs a new {@link EarthquakeLoader} for the query built from the saved filters.
+     * The preferences are read on the background thread, not by the caller.
+     *
+     * @param context of the activity
+     * @param forceRefresh true to ignore a cached result for the url
+     */
+    public EarthquakeLoader(Context context, boolean forceRefresh) {
+        this(context, null, forceRefresh);
+        this.mUrlFromPreferences = true;
+    }
+
+    /**
+     * Starts loading the query built from the saved filters right away, before the activity
+     * has inflated its layout and created its loader. The next loader for the same query
+     * takes over this load instead of making the request again.
+     */
+    public static synchronized void preload(Context context) {
+        // A preload that is still running or fresh is taken by the next loader,
+        // one left over from an earlier launch is replaced
+        if (sPreload != null && (!sPreload.isDone() || getFreshPreload(sPreload) != null)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        FutureTask<Preload> task = new FutureTask<>(new Callable<Preload>() {
+            @Override
+            public Preload call() {
+                StartupTrace.begin("preload");
+                try {
+                    String url = QueryUtils.buildRequestUrl(appContext);
+                    EarthquakeSync.rememberQuery(appContext, url);
+
+                    // The network is only needed when nothing is held for the query
+                    List<Earthquake> earthquakes = readHeld(appContext, url);
+                    boolean offline = false;
+                    if (earthquakes == null) {
+                        offline = !QueryUtils.isConnected(appContext);
+                        if (!offline) {
+                            earthquakes = fetch(appContext, url, false);
+                        }
+                    }
+                    sPreloadTier.setSize(earthquakes);
+                    return new Preload(url, offline, earthquakes);
+                } finally {
+                    StartupTrace.end("preload");
+                }
+            }
+        });
+        sPreloadTier.setSize(null);
+        MemoryBudget.getInstance().register(sPreloadTier);
+        // The same executor the loader itself runs on
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
+        sPreload = task;
+    }
+
+    /**
+     * Drops the preload when the activity that started it finishes before its loader
+     * took it. A running load is left to fill the caches, only its result is dropped.
+     */
+    public static synchronized void cancelPreload() {
+        if (sPreload != null) {
+            sPreload.cancel(false);
+            dropPreload();
+        }
+    }
+
+    /**
+     * Forgets the preload and takes it out of the budget
+     */
+    private static synchronized void dropPreload() {
+        sPreload = null;
+        sPreloadTier.setSize(null);
+        MemoryBudget.getInstance().unregister(sPreloadTier);
+    }
+
+    /**
+     * Returns the url this loader loads data from, null until the first load
+     * when the url is built from the saved filters
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Returns true if the last load found no network connection and loaded nothing
+     */
+    public boolean isOffline() {
+        return mOffline;
     }
 
     /**
@@ -44,6 +190,12 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
         forceLoad();
     }
 
+    @Override
+    protected void onReset() {
+        super.onReset();
+        MemoryBudget.getInstance().unregister(mResultTier);
+    }
+
     /**
      * This is on a background thread.
      */
@@ -51,17 +203,216 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
     @Override
     public List<Earthquake> loadInBackground() {
         Log.v(LOG_TAG,"I am in loadInBackground");
+        StartupTrace.begin("loadInBackground");
+        try {
+            return loadAndIndex();
+        } finally {
+            StartupTrace.end("loadInBackground");
+        }
+    }
+
+    private List<Earthquake> loadAndIndex() {
+        // Take over a preload even when refreshing, so it isn't handed to a later loader
+        Preload preload = takePreload();
+        if (mUrlFromPreferences) {
+            mUrl = preload != null ? preload.mUrl : QueryUtils.buildRequestUrl(getContext());
+        }
+
         // Don't perform the request if there are no URLs, or the first URL is null.
         if (mUrl == null || TextUtils.isEmpty(mUrl)) {
             return null;
         }
 
-        List<Earthquake> result = QueryUtils.fetchEarthquakeData(mUrl);
+        List<Earthquake> result;
+        // The format chooser may have picked another format since, the events are the same
+        if (preload != null && !mForceRefresh
+                && QueryUtils.getCacheKey(mUrl).equals(QueryUtils.getCacheKey(preload.mUrl))) {
+            mOffline = preload.mOffline;
+            result = preload.mEarthquakes;
+        } else {
+            EarthquakeSync.rememberQuery(getContext(), mUrl);
+
+            // Memory and disk are read first, the network is only needed for the fetch
+            result = mForceRefresh ? null : readHeld(getContext(), mUrl);
+            boolean connected = true;
+            if (result == null) {
+                connected = QueryUtils.isConnected(getContext());
+                if (connected) {
+                    result = fetch(getContext(), mUrl, mForceRefresh);
+                } else if (mForceRefresh) {
+                    // A refresh without a network keeps showing what is held
+                    result = readHeld(getContext(), mUrl);
+                }
+            }
+            mOffline = result == null && !connected;
+            if (mOffline) {
+                return null;
+            }
+        }
+
+        // Point the overview clusters at the new result, they are built when first drawn,
+        // and alert on events matching a watch rule
+        if (result != null) {
+            EarthquakeClusterIndex.getInstance().setEarthquakes(result);
+            AlertNotifier.onEarthquakesLoaded(getContext(), result);
+        }
+        mResultTier.setSize(result);
+        MemoryBudget.getInstance().enforce();
+        return result;
+    }
+
+    /**
+     * Returns the preload started for the next loader and forgets it, or null if there
+     * is none, it failed or it is outdated
+     */
+    private static Preload takePreload() {
+        Future<Preload> future;
+        synchronized (EarthquakeLoader.class) {
+            future = sPreload;
+            dropPreload();
+        }
+        if (future == null) {
+            return null;
+        }
+        return getFreshPreload(future);
+    }
+
+    /**
+     * Waits for the preload and returns it, or null if it failed, was cancelled or
+     * finished more than {@link #PRELOAD_MAX_AGE_MILLIS} ago
+     */
+    private static Preload getFreshPreload(Future<Preload> future) {
+        try {
+            Preload preload = future.get();
+            long age = SystemClock.elapsedRealtime() - preload.mLoadedAt;
+            if (age > PRELOAD_MAX_AGE_MILLIS) {
+                Log.v(LOG_TAG, "Dropping a preload finished " + age + " ms ago");
+                return null;
+            }
+            return preload;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException e) {
+            // Dropped by cancelPreload
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem preloading the earthquakes", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the earthquakes for the url held in memory or on disk, or null if neither
+     * has them. This works without a network.
+     */
+    private static List<Earthquake> readHeld(Context context, String url) {
+        // Serve the result prefetched by the settings screen if there is one
+        EarthquakeCache cache = EarthquakeCache.getInstance();
+        List<Earthquake> cached = cache.get(url);
+        if (cached != null) {
+            StartupTrace.mark("Served from memory");
+            return cached;
+        }
+
+        // Otherwise use the result written by the last background sync
+        List<Earthquake> stored = new EarthquakeStore(context)
+                .read(url, EarthquakeSync.STORE_MAX_AGE_MILLIS);
+        if (stored != null) {
+            StartupTrace.mark("Served from disk");
+            cache.put(url, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Fetches the earthquakes for the url and keeps them in memory and on disk
+     */
+    private static List<Earthquake> fetch(Context context, String url, boolean forceRefresh) {
+        // Fetch only the time ranges not held yet. A refresh asks for the whole query,
+        // since held events may have been revised, and the segment cache learns from it.
+        StartupTrace.mark("Network request started");
+        EarthquakeSegmentCache segmentCache = EarthquakeSegmentCache.getInstance();
+        List<Earthquake> result = forceRefresh ? null : segmentCache.query(url);
+        if (result == null) {
+            result = QueryUtils.fetchEarthquakeData(url);
+            segmentCache.update(url, result);
+        }
+        Log.v(LOG_TAG, segmentCache.getStats());
+        Log.v(LOG_TAG, MemoryBudget.getInstance().getDebugStats());
+        EarthquakeCache.getInstance().put(url, result);
+        new EarthquakeStore(context).write(url, result);
         return result;
+    }
+
+    /**
+     * The events of a finished preload. They were also put in the {@link EarthquakeCache}
+     * and the {@link EarthquakeStore}, so a trim drops the preload and the loader reads
+     * them back from there.
+     */
+    private static class PreloadTier implements MemoryBudget.Tier {
+
+        private volatile long mSizeInBytes;
+
+        void setSize(List<Earthquake> earthquakes) {
+            mSizeInBytes = earthquakes == null ? 0 : MemoryBudget.estimateSize(earthquakes);
+        }
+
+        @Override
+        public String getName() {
+            return "preload";
         }
 
+        @Override
+        public int getPriority() {
+            return MemoryBudget.PRIORITY_DISK_BACKED;
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return mSizeInBytes;
+        }
 
+        @Override
+        public void trimToSize(long maxBytes) {
+            synchronized (EarthquakeLoader.class) {
+                // A running preload holds no events yet, its loader still takes it
+                if (mSizeInBytes > maxBytes && sPreload != null && sPreload.isDone()) {
+                    Log.v(LOG_TAG, "Dropping the preload to free memory");
+                    dropPreload();
+                }
+            }
+        }
     }
 
+    /**
+     * The events the loader delivered last, which the activity shows. They can't be
+     * dropped while they are on screen, the tier only makes the caches leave room for them.
+     */
+    private static class ResultTier implements MemoryBudget.Tier {
+
+        private volatile long mSizeInBytes;
 
+        void setSize(List<Earthquake> earthquakes) {
+            mSizeInBytes = earthquakes == null ? 0 : MemoryBudget.estimateSize(earthquakes);
+        }
+
+        @Override
+        public String getName() {
+            return "loaderResult";
+        }
 
+        @Override
+        public int getPriority() {
+            return MemoryBudget.PRIORITY_SHOWN;
+        }
+
+        @Override
+        public long getSizeInBytes() {
+            return mSizeInBytes;
+        }
+
+        @Override
+        public void trimToSize(long maxBytes) {
+            // Shown by the activity until the loader is reset
+        }
+    }
+}
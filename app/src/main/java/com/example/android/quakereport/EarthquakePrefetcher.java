@@ -0,0 +1,105 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Fetches the query described by the current preferences in the background
+ * and stores it in the {@link EarthquakeCache}, so the list is ready when the
+ * user returns from the settings screen.
+ *
+ * Must be used from the main thread. Rapid preference edits are debounced and
+ * a prefetch still running for an older query is cancelled.
+ */
+public final class EarthquakePrefetcher {
+
+    private static final String LOG_TAG = EarthquakePrefetcher.class.getSimpleName();
+
+    /* Time to wait after the last preference change before prefetching */
+    private static final long DEBOUNCE_MILLIS = 700;
+
+    private static EarthquakePrefetcher sInstance;
+
+    private final Context mContext;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /* Prefetch currently running, if any */
+    private PrefetchTask mTask;
+
+    /* Posted after the debounce delay to start the prefetch */
+    private final Runnable mStartPrefetch = new Runnable() {
+        @Override
+        public void run() {
+            // Preferences are saved after onPreferenceChange returns,
+            // so the url is only built once the debounce delay has passed
+            String url = QueryUtils.buildRequestUrl(mContext);
+            if (mTask != null) {
+                if (QueryUtils.getCacheKey(url).equals(QueryUtils.getCacheKey(mTask.mUrl))) {
+                    return;
+                }
+                mTask.cancel(true);
+            }
+            if (EarthquakeCache.getInstance().get(url) != null) {
+                mTask = null;
+                return;
+            }
+            mTask = new PrefetchTask(mContext, url);
+            mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    };
+
+    private EarthquakePrefetcher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the prefetcher shared by the whole app
+     */
+    public static EarthquakePrefetcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EarthquakePrefetcher(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Schedules a prefetch of the current query, replacing any pending one
+     */
+    public void schedule() {
+        mHandler.removeCallbacks(mStartPrefetch);
+        mHandler.postDelayed(mStartPrefetch, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Fetches one url and stores the result unless the task was superseded
+     */
+    private static class PrefetchTask extends AsyncTask<Void, Void, Void> {
+
+        private final Context mContext;
+
+        private final String mUrl;
+
+        PrefetchTask(Context context, String url) {
+            mContext = context;
+            mUrl = url;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            Log.v(LOG_TAG, "Prefetching " + mUrl);
+            List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(mUrl);
+            if (!isCancelled()) {
+                // Also written to disk, so the result survives the memory cache being trimmed
+                new EarthquakeStore(mContext).write(mUrl, earthquakes);
+                EarthquakeCache.getInstance().put(mUrl, earthquakes);
+            }
+            return null;
+        }
+    }
+}
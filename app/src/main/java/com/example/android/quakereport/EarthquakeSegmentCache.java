@@ -0,0 +1,779 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * In-memory cache that remembers which [starttime, endtime, minmag] segments of the
+ * USGS catalogue it holds completely, so queries that overlap in time only fetch the
+ * intervals that are still missing.
+ *
+ * A segment is recorded only when a response provably contains every event in it:
+ * <ul>
+ * <li>a response with fewer events than its limit covers its whole time window</li>
+ * <li>a response ordered by time covers the window from its oldest event to its end</li>
+ * <li>a gap request is sent without a limit, so it always covers the gap</li>
+ * </ul>
+ * USGS publishes some events late and revises magnitudes in the first hours, so the
+ * last {@link #UNSETTLED_MILLIS} before a request are never recorded as held. A query
+ * reaching into that window always fetches it again.
+ *
+ * Events are identified by their url, so overlapping responses never duplicate an event.
+ *
+ * The lock is only held to plan a query and to merge its responses, never while a
+ * request is on the network, so stats and trims don't wait for a download.
+ *
+ * When the {@link MemoryBudget} trims this cache, its events and segments are written
+ * to a file in the background and read back by the next query, so a trim doesn't cost
+ * a download. The file also lets a new process start from the last trimmed content.
+ */
+public final class EarthquakeSegmentCache implements MemoryBudget.Tier {
+
+    private static final String LOG_TAG = EarthquakeSegmentCache.class.getSimpleName();
+
+    /* USGS returns the last 30 days when a query has no starttime */
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /* Part of the catalogue before a request that may still change */
+    private static final long UNSETTLED_MILLIS = 3 * 60 * 60 * 1000;
+
+    /* Gaps shorter than this are not worth a request */
+    private static final long MIN_GAP_MILLIS = 60 * 1000;
+
+    /* Gap requests have no limit, so when more than this fraction of the window is missing
+     * the original query is sent instead of possibly downloading the whole window */
+    private static final double MAX_GAP_FRACTION = 0.5;
+
+    /* Name of the file holding the trimmed content, and the version of its layout */
+    private static final String SPILL_FILE = "segment_cache.bin";
+    private static final int SPILL_VERSION = 1;
+
+    /* Format of the starttime and endtime query parameters */
+    private static final String TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    private static final String ORDER_BY_TIME = "time";
+    private static final String ORDER_BY_TIME_ASC = "time-asc";
+    private static final String ORDER_BY_MAGNITUDE_ASC = "magnitude-asc";
+
+    private static final EarthquakeSegmentCache sInstance = new EarthquakeSegmentCache();
+
+    /* Every event held, keyed by its url */
+    private final Map<String, Earthquake> mEvents = new HashMap<>();
+
+    /* Segments of the catalogue held completely */
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    /* Metrics */
+    private long mQueries;
+    private long mFullHits;
+    private long mEventsServed;
+    private long mEventsFromCache;
+    private long mEventsFetched;
+    private long mBytesFetched;
+    private long mBytesAvoided;
+
+    /* Estimated memory held by mEvents */
+    private long mSizeInBytes;
+
+    /* Incremented whenever the held events are dropped, so a query that fetched its
+     * gaps meanwhile knows the events around them are gone */
+    private int mGeneration;
+
+    /* True when the spill file may hold content to read back. A previous process may
+     * have left one, so it is checked once at the start too. */
+    private boolean mSpilled = true;
+
+    /* Writes, reads and deletes the spill file one at a time, in order */
+    private final ExecutorService mSpillExecutor = Executors.newSingleThreadExecutor();
+
+    private EarthquakeSegmentCache() {
+        MemoryBudget.getInstance().register(this);
+    }
+
+    /**
+     * Returns the cache shared by the whole app
+     */
+    public static EarthquakeSegmentCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Answers the query, fetching only the parts of its time window that are not held yet.
+     * This is on a background thread.
+     *
+     * @return the earthquakes for the url, or null if it has to be fetched as a whole
+     * because a request failed or the url has parameters this cache doesn't understand
+     */
+    public List<Earthquake> query(String requestUrl) {
+        Query query = Query.parse(requestUrl);
+        if (query == null) {
+            return null;
+        }
+        restoreSpill();
+
+        List<long[]> gaps;
+        boolean wholeQuery;
+        int generation;
+        // Taken before the requests are sent, so the settled part is never overestimated
+        long requestTime = System.currentTimeMillis();
+        synchronized (this) {
+            mQueries++;
+            pruneBefore(requestTime - DEFAULT_WINDOW_MILLIS);
+
+            gaps = findGaps(query.mStart, query.mEnd, query.mMinMagnitude);
+            long gapMillis = 0;
+            for (long[] gap : gaps) {
+                gapMillis += gap[1] - gap[0];
+            }
+            // Mostly a miss, so send the query itself and learn what it covers
+            wholeQuery = gapMillis > (query.mEnd - query.mStart) * MAX_GAP_FRACTION;
+            generation = mGeneration;
+
+            if (!wholeQuery && gaps.isEmpty()) {
+                mFullHits++;
+                return serve(query, new HashSet<String>(), 0);
+            }
+        }
+
+        List<Earthquake> result;
+        long startBytes = QueryUtils.getBytesRead();
+        if (wholeQuery) {
+            List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(requestUrl);
+            if (earthquakes == null) {
+                return null;
+            }
+            synchronized (this) {
+                mBytesFetched += QueryUtils.getBytesRead() - startBytes;
+                Set<String> fetchedUrls = new HashSet<>();
+                add(earthquakes, fetchedUrls);
+                Segment covered = recordResponseCoverage(query, earthquakes, requestTime);
+                if (covered != null) {
+                    removeMissing(covered, fetchedUrls);
+                }
+                mEventsServed += earthquakes.size();
+            }
+            result = earthquakes;
+        } else {
+            List<List<Earthquake>> responses = new ArrayList<>();
+            for (long[] gap : gaps) {
+                List<Earthquake> earthquakes =
+                        QueryUtils.fetchEarthquakeData(query.gapUrl(gap[0], gap[1]));
+                if (earthquakes == null) {
+                    return null;
+                }
+                responses.add(earthquakes);
+            }
+            synchronized (this) {
+                mBytesFetched += QueryUtils.getBytesRead() - startBytes;
+                if (generation != mGeneration) {
+                    // Trimmed while fetching, the events around the gaps are gone
+                    return null;
+                }
+                Set<String> fetchedUrls = new HashSet<>();
+                for (int i = 0; i < gaps.size(); i++) {
+                    add(responses.get(i), fetchedUrls);
+                }
+                for (long[] gap : gaps) {
+                    // A gap response holds every event of the gap, so the others were deleted
+                    Segment covered = new Segment(gap[0], gap[1], query.mMinMagnitude);
+                    removeMissing(covered, fetchedUrls);
+                    addSettledSegment(covered, requestTime);
+                }
+                result = serve(query, fetchedUrls, gaps.size());
+            }
+        }
+        MemoryBudget.getInstance().enforce();
+        return result;
+    }
+
+    /**
+     * Stores the response to a request made without this cache, like a forced refresh.
+     * Revised events replace the held ones, and held events missing from a window the
+     * response covers completely are dropped because USGS deleted them.
+     * This is on a background thread.
+     */
+    public void update(String requestUrl, List<Earthquake> earthquakes) {
+        Query query = Query.parse(requestUrl);
+        if (query == null || earthquakes == null) {
+            return;
+        }
+        // The response is older than this, so the settled part is slightly underestimated
+        long requestTime = System.currentTimeMillis();
+        synchronized (this) {
+            Set<String> fetchedUrls = new HashSet<>();
+            add(earthquakes, fetchedUrls);
+            Segment covered = recordResponseCoverage(query, earthquakes, requestTime);
+            if (covered != null) {
+                removeMissing(covered, fetchedUrls);
+            }
+        }
+        MemoryBudget.getInstance().enforce();
+    }
+
+    /**
+     * Returns the held events matching the query and updates the metrics
+     */
+    private List<Earthquake> serve(Query query, Set<String> fetchedUrls, int gapCount) {
+        List<Earthquake> result = select(query);
+        int fromCache = 0;
+        for (Earthquake earthquake : result) {
+            if (!fetchedUrls.contains(earthquake.getmUrl())) {
+                fromCache++;
+            }
+        }
+        mEventsServed += result.size();
+        mEventsFromCache += fromCache;
+        mBytesAvoided += fromCache * getAverageBytesPerEvent();
+        Log.v(LOG_TAG, "Served " + result.size() + " earthquakes, " + fromCache
+                + " from cache after fetching " + gapCount + " gaps");
+        return result;
+    }
+
+    /**
+     * Returns the fraction of queries answered without any request
+     */
+    public synchronized double getHitRatio() {
+        return mQueries == 0 ? 0 : (double) mFullHits / mQueries;
+    }
+
+    /**
+     * Returns the fraction of served events that came from the cache
+     */
+    public synchronized double getEventHitRatio() {
+        return mEventsServed == 0 ? 0 : (double) mEventsFromCache / mEventsServed;
+    }
+
+    /**
+     * Returns an estimate of the bytes not downloaded thanks to the cache,
+     * based on the average size of an event in the responses fetched so far
+     */
+    public synchronized long getBytesAvoided() {
+        return mBytesAvoided;
+    }
+
+    /**
+     * Returns a summary of the metrics for logs and debug screens
+     */
+    public synchronized String getStats() {
+        return "queries=" + mQueries
+                + " hitRatio=" + getHitRatio()
+                + " eventHitRatio=" + getEventHitRatio()
+                + " bytesFetched=" + mBytesFetched
+                + " bytesAvoided=" + mBytesAvoided
+                + " events=" + mEvents.size()
+                + " segments=" + mSegments.size();
+    }
+
+    /**
+     * Drops every event and segment, in memory and on disk
+     */
+    public synchronized void clear() {
+        dropEvents();
+        if (mSpilled) {
+            mSpilled = false;
+            final File file = getSpillFile();
+            if (file != null) {
+                mSpillExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        file.delete();
+                    }
+                });
+            }
+        }
+    }
+
+    private void dropEvents() {
+        mEvents.clear();
+        mSegments.clear();
+        mSizeInBytes = 0;
+        mGeneration++;
+    }
+
+    @Override
+    public String getName() {
+        return "segmentCache";
+    }
+
+    @Override
+    public int getPriority() {
+        return MemoryBudget.PRIORITY_DISK_BACKED;
+    }
+
+    @Override
+    public synchronized long getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // Dropping single events would leave holes in the recorded segments,
+        // so the cache is written to disk and emptied as a whole
+        if (mSizeInBytes <= maxBytes) {
+            return;
+        }
+        final File file = getSpillFile();
+        if (file == null) {
+            dropEvents();
+            return;
+        }
+        final List<Earthquake> events = new ArrayList<>(mEvents.values());
+        final List<Segment> segments = new ArrayList<>(mSegments);
+        dropEvents();
+        mSpilled = true;
+        mSpillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSpill(file, events, segments);
+            }
+        });
+    }
+
+    /**
+     * Reads back the content written by the last trim, if any, and merges it with what
+     * was fetched since. Events fetched since are newer, so they win.
+     */
+    private void restoreSpill() {
+        final File file = getSpillFile();
+        int generation;
+        synchronized (this) {
+            if (!mSpilled || file == null) {
+                return;
+            }
+            mSpilled = false;
+            generation = mGeneration;
+        }
+
+        // Runs after the pending write, the file is deleted once read
+        Future<Spill> future = mSpillExecutor.submit(new Callable<Spill>() {
+            @Override
+            public Spill call() {
+                Spill spill = readSpill(file);
+                file.delete();
+                return spill;
+            }
+        });
+        Spill spill;
+        try {
+            spill = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem reading the trimmed segments", e.getCause());
+            return;
+        }
+        if (spill == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // Trimmed again meanwhile, the events read back are stale
+                return;
+            }
+            for (Earthquake earthquake : spill.mEvents) {
+                if (!mEvents.containsKey(earthquake.getmUrl())) {
+                    mEvents.put(earthquake.getmUrl(), earthquake);
+                    mSizeInBytes += MemoryBudget.estimateSize(earthquake);
+                }
+            }
+            for (Segment segment : spill.mSegments) {
+                addSegment(segment);
+            }
+            Log.v(LOG_TAG, "Read back " + spill.mEvents.size() + " earthquakes and "
+                    + spill.mSegments.size() + " segments");
+        }
+        MemoryBudget.getInstance().enforce();
+    }
+
+    private static File getSpillFile() {
+        File directory = MemoryBudget.getInstance().getSpillDirectory();
+        return directory == null ? null : new File(directory, SPILL_FILE);
+    }
+
+    /**
+     * Writes the events and segments to the file, replacing it. This is on the spill thread.
+     */
+    private static void writeSpill(File file, List<Earthquake> events, List<Segment> segments) {
+        // Write to a temporary file first so a reader never sees a half written file
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(SPILL_VERSION);
+            output.writeInt(segments.size());
+            for (Segment segment : segments) {
+                output.writeLong(segment.mStart);
+                output.writeLong(segment.mEnd);
+                output.writeDouble(segment.mMinMagnitude);
+            }
+            output.writeInt(events.size());
+            for (Earthquake earthquake : events) {
+                output.writeDouble(earthquake.getmMagnitude());
+                output.writeUTF(earthquake.getmLocation() == null ? "" : earthquake.getmLocation());
+                output.writeLong(earthquake.getmTimeInMilliseconds());
+                output.writeUTF(earthquake.getmUrl());
+                output.writeDouble(earthquake.getmLatitude());
+                output.writeDouble(earthquake.getmLongitude());
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                Log.e(LOG_TAG, "Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem writing the trimmed segments", e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem closing " + temp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the file written by {@link #writeSpill}, or returns null if there is none
+     * or it can't be read. This is on the spill thread.
+     */
+    private static Spill readSpill(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != SPILL_VERSION) {
+                return null;
+            }
+            Spill spill = new Spill();
+            int segmentCount = input.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                spill.mSegments.add(new Segment(input.readLong(), input.readLong(),
+                        input.readDouble()));
+            }
+            int eventCount = input.readInt();
+            for (int i = 0; i < eventCount; i++) {
+                spill.mEvents.add(new Earthquake(input.readDouble(), input.readUTF(),
+                        input.readLong(), input.readUTF(), input.readDouble(), input.readDouble()));
+            }
+            return spill;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem reading the trimmed segments", e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem closing " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds fetched events to the cache and notes their urls in fetchedUrls.
+     * Other fetches running at the same time count towards mBytesFetched too,
+     * so the average size of an event is an estimate.
+     */
+    private void add(List<Earthquake> earthquakes, Set<String> fetchedUrls) {
+        mEventsFetched += earthquakes.size();
+        for (Earthquake earthquake : earthquakes) {
+            Earthquake replaced = mEvents.put(earthquake.getmUrl(), earthquake);
+            mSizeInBytes += MemoryBudget.estimateSize(earthquake);
+            if (replaced != null) {
+                mSizeInBytes -= MemoryBudget.estimateSize(replaced);
+            }
+            fetchedUrls.add(earthquake.getmUrl());
+        }
+    }
+
+    /**
+     * Drops the held events in the segment that are not in keptUrls
+     */
+    private void removeMissing(Segment segment, Set<String> keptUrls) {
+        Iterator<Earthquake> events = mEvents.values().iterator();
+        while (events.hasNext()) {
+            Earthquake earthquake = events.next();
+            long time = earthquake.getmTimeInMilliseconds();
+            if (time >= segment.mStart && time <= segment.mEnd
+                    && earthquake.getmMagnitude() >= segment.mMinMagnitude
+                    && !keptUrls.contains(earthquake.getmUrl())) {
+                events.remove();
+                mSizeInBytes -= MemoryBudget.estimateSize(earthquake);
+            }
+        }
+    }
+
+    private long getAverageBytesPerEvent() {
+        return mEventsFetched == 0 ? 0 : mBytesFetched / mEventsFetched;
+    }
+
+    /**
+     * Records the settled part of the segment a response to the query itself is known to
+     * cover completely
+     *
+     * @param requestTime when the request was sent
+     * @return the whole covered segment, or null if the response doesn't provably cover any
+     */
+    private Segment recordResponseCoverage(Query query, List<Earthquake> earthquakes,
+                                           long requestTime) {
+        Segment covered = null;
+        if (earthquakes.size() < query.mLimit) {
+            covered = new Segment(query.mStart, query.mEnd, query.mMinMagnitude);
+        } else if (ORDER_BY_TIME.equals(query.mOrderBy) && !earthquakes.isEmpty()) {
+            long oldest = earthquakes.get(earthquakes.size() - 1).getmTimeInMilliseconds();
+            // Other events may share the oldest time, so that instant is left uncovered
+            covered = new Segment(oldest + 1, query.mEnd, query.mMinMagnitude);
+        }
+        if (covered != null) {
+            addSettledSegment(covered, requestTime);
+        }
+        return covered;
+    }
+
+    /**
+     * Adds the part of a fetched segment that ends {@link #UNSETTLED_MILLIS} before the
+     * request, if any
+     */
+    private void addSettledSegment(Segment fetched, long requestTime) {
+        long end = Math.min(fetched.mEnd, requestTime - UNSETTLED_MILLIS);
+        if (end > fetched.mStart) {
+            addSegment(new Segment(fetched.mStart, end, fetched.mMinMagnitude));
+        }
+    }
+
+    /**
+     * Returns the intervals of [start, end] not covered by a segment
+     * holding every event of at least minMagnitude
+     */
+    private List<long[]> findGaps(long start, long end, double minMagnitude) {
+        List<Segment> covering = new ArrayList<>();
+        for (Segment segment : mSegments) {
+            if (segment.mMinMagnitude <= minMagnitude && segment.mEnd > start && segment.mStart < end) {
+                covering.add(segment);
+            }
+        }
+        Collections.sort(covering, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.mStart < b.mStart ? -1 : (a.mStart == b.mStart ? 0 : 1);
+            }
+        });
+
+        List<long[]> gaps = new ArrayList<>();
+        long position = start;
+        for (Segment segment : covering) {
+            if (segment.mStart > position) {
+                addGap(gaps, position, segment.mStart);
+            }
+            position = Math.max(position, segment.mEnd);
+        }
+        if (position < end) {
+            addGap(gaps, position, end);
+        }
+        return gaps;
+    }
+
+    private static void addGap(List<long[]> gaps, long start, long end) {
+        if (end - start >= MIN_GAP_MILLIS) {
+            gaps.add(new long[]{start, end});
+        }
+    }
+
+    /**
+     * Adds a segment, merging it with segments of the same magnitude it touches
+     */
+    private void addSegment(Segment added) {
+        Iterator<Segment> iterator = mSegments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.mMinMagnitude == added.mMinMagnitude
+                    && segment.mStart <= added.mEnd && added.mStart <= segment.mEnd) {
+                added = new Segment(Math.min(segment.mStart, added.mStart),
+                        Math.max(segment.mEnd, added.mEnd), added.mMinMagnitude);
+                iterator.remove();
+            }
+        }
+        mSegments.add(added);
+    }
+
+    /**
+     * Drops the events and segments older than the given time
+     */
+    private void pruneBefore(long time) {
+        Iterator<Earthquake> events = mEvents.values().iterator();
+        while (events.hasNext()) {
+            Earthquake earthquake = events.next();
+            if (earthquake.getmTimeInMilliseconds() < time) {
+                events.remove();
+                mSizeInBytes -= MemoryBudget.estimateSize(earthquake);
+            }
+        }
+        Iterator<Segment> segments = mSegments.iterator();
+        while (segments.hasNext()) {
+            if (segments.next().mEnd < time) {
+                segments.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the held events matching the query, sorted and limited like USGS would
+     */
+    private List<Earthquake> select(Query query) {
+        List<Earthquake> matching = new ArrayList<>();
+        for (Earthquake earthquake : mEvents.values()) {
+            long time = earthquake.getmTimeInMilliseconds();
+            if (time >= query.mStart && time <= query.mEnd
+                    && earthquake.getmMagnitude() >= query.mMinMagnitude) {
+                matching.add(earthquake);
+            }
+        }
+
+        final String orderBy = query.mOrderBy;
+        Collections.sort(matching, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                int result;
+                if (ORDER_BY_TIME.equals(orderBy) || ORDER_BY_TIME_ASC.equals(orderBy)) {
+                    result = compareLongs(b.getmTimeInMilliseconds(), a.getmTimeInMilliseconds());
+                } else {
+                    result = Double.compare(b.getmMagnitude(), a.getmMagnitude());
+                }
+                boolean ascending = ORDER_BY_TIME_ASC.equals(orderBy)
+                        || ORDER_BY_MAGNITUDE_ASC.equals(orderBy);
+                return ascending ? -result : result;
+            }
+        });
+
+        if (matching.size() > query.mLimit) {
+            return new ArrayList<>(matching.subList(0, query.mLimit));
+        }
+        return matching;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /* The content of the spill file */
+    private static class Spill {
+        final List<Earthquake> mEvents = new ArrayList<>();
+        final List<Segment> mSegments = new ArrayList<>();
+    }
+
+    /* A time range held completely for events of at least mMinMagnitude */
+    private static class Segment {
+        final long mStart;
+        final long mEnd;
+        final double mMinMagnitude;
+
+        Segment(long start, long end, double minMagnitude) {
+            mStart = start;
+            mEnd = end;
+            mMinMagnitude = minMagnitude;
+        }
+    }
+
+    /* The parameters of a query url this cache can answer */
+    private static class Query {
+        String mFormat;
+        String mOrderBy;
+        double mMinMagnitude;
+        int mLimit;
+        long mStart;
+        long mEnd;
+
+        /**
+         * Returns the query of the url, or null if it uses parameters this cache doesn't handle
+         */
+        static Query parse(String url) {
+            Uri uri = Uri.parse(url);
+            for (String name : uri.getQueryParameterNames()) {
+                if (!name.equals("format") && !name.equals("orderby") && !name.equals("minmag")
+                        && !name.equals("limit") && !name.equals("starttime")
+                        && !name.equals("endtime")) {
+                    return null;
+                }
+            }
+
+            Query query = new Query();
+            query.mFormat = uri.getQueryParameter("format");
+            query.mOrderBy = uri.getQueryParameter("orderby");
+            try {
+                String minMagnitude = uri.getQueryParameter("minmag");
+                query.mMinMagnitude = minMagnitude == null
+                        ? Double.NEGATIVE_INFINITY : Double.parseDouble(minMagnitude);
+                String limit = uri.getQueryParameter("limit");
+                query.mLimit = limit == null ? Integer.MAX_VALUE : Integer.parseInt(limit);
+
+                SimpleDateFormat timeFormat = createTimeFormat();
+                String endTime = uri.getQueryParameter("endtime");
+                query.mEnd = endTime == null
+                        ? System.currentTimeMillis() : timeFormat.parse(endTime).getTime();
+                String startTime = uri.getQueryParameter("starttime");
+                query.mStart = startTime == null
+                        ? query.mEnd - DEFAULT_WINDOW_MILLIS : timeFormat.parse(startTime).getTime();
+            } catch (NumberFormatException | ParseException e) {
+                return null;
+            }
+            return query;
+        }
+
+        /**
+         * Returns the url fetching every event of this query in [start, end]
+         */
+        String gapUrl(long start, long end) {
+            // Times are sent with second precision, so round outwards
+            SimpleDateFormat timeFormat = createTimeFormat();
+            Uri.Builder uriBuilder = Uri.parse(EarthquakeActivity.USGS_REQUEST_URL).buildUpon();
+            if (mFormat != null) {
+                uriBuilder.appendQueryParameter("format", mFormat);
+            }
+            uriBuilder.appendQueryParameter("starttime", timeFormat.format(start / 1000 * 1000));
+            uriBuilder.appendQueryParameter("endtime", timeFormat.format((end + 999) / 1000 * 1000));
+            if (mMinMagnitude != Double.NEGATIVE_INFINITY) {
+                uriBuilder.appendQueryParameter("minmag", String.valueOf(mMinMagnitude));
+            }
+            return uriBuilder.toString();
+        }
+
+        private static SimpleDateFormat createTimeFormat() {
+            SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_PATTERN, Locale.US);
+            timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return timeFormat;
+        }
+    }
+}
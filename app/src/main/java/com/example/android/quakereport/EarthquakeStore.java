@@ -0,0 +1,193 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Keeps earthquake lists on disk, one file per query url, so they survive the process.
+ * The format of the url is left out of the key, see {@link QueryUtils#getCacheKey(String)}.
+ *
+ * Files are written in the same GeoJSON layout USGS uses (only the fields we read),
+ * so they are decoded again with {@link QueryUtils#extractFeatureFromJson(String)}.
+ */
+public final class EarthquakeStore {
+
+    private static final String LOG_TAG = EarthquakeStore.class.getSimpleName();
+
+    /* Directory inside the cache dir holding the stored queries */
+    private static final String DIRECTORY = "earthquakes";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    /**
+     * @param context any context of the app
+     */
+    public EarthquakeStore(Context context) {
+        mDirectory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+    }
+
+    /**
+     * Returns the earthquakes stored for the url, or null if nothing was stored
+     * or the stored result is older than maxAgeMillis
+     */
+    public List<Earthquake> read(String url, long maxAgeMillis) {
+        File file = getFile(url, maxAgeMillis);
+        if (file == null) {
+            return null;
+        }
+
+        String json;
+        try {
+            json = readFile(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem reading the stored earthquakes", e);
+            return null;
+        }
+
+        // Two urls may share a file name, so check the file belongs to this url
+        try {
+            if (!QueryUtils.getCacheKey(url).equals(new JSONObject(json).getString("url"))) {
+                return null;
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Problem reading the stored earthquakes", e);
+            return null;
+        }
+        return QueryUtils.extractFeatureFromJson(json);
+    }
+
+    /**
+     * Returns the file stored for the url, or null if nothing was stored or the stored
+     * result is older than maxAgeMillis. Two urls may share a file, so readers have to
+     * check its root "url", which comes before the features and holds the cache key of
+     * the url.
+     */
+    File getFile(String url, long maxAgeMillis) {
+        File file = fileFor(url);
+        if (!file.exists() || System.currentTimeMillis() - file.lastModified() > maxAgeMillis) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Stores the earthquakes fetched from the url, replacing what was stored before
+     */
+    public void write(String url, List<Earthquake> earthquakes) {
+        if (url == null || earthquakes == null) {
+            return;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + mDirectory);
+            return;
+        }
+
+        String json;
+        try {
+            json = toJson(QueryUtils.getCacheKey(url), earthquakes);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Problem building the earthquake JSON", e);
+            return;
+        }
+
+        // Write to a temporary file first so a reader never sees a half written file
+        File file = fileFor(url);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temp);
+            outputStream.write(json.getBytes(UTF_8));
+            outputStream.close();
+            outputStream = null;
+            if (!temp.renameTo(file)) {
+                Log.e(LOG_TAG, "Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem storing the earthquakes", e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem closing " + temp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file used to store the given url
+     */
+    private File fileFor(String url) {
+        return new File(mDirectory,
+                Integer.toHexString(QueryUtils.getCacheKey(url).hashCode()) + ".json");
+    }
+
+    /**
+     * Builds the GeoJSON document stored under the cache key
+     */
+    private static String toJson(String key, List<Earthquake> earthquakes) throws JSONException {
+        JSONArray features = new JSONArray();
+        for (Earthquake earthquake : earthquakes) {
+            JSONObject properties = new JSONObject();
+            properties.put("mag", earthquake.getmMagnitude());
+            properties.put("place", earthquake.getmLocation());
+            properties.put("time", earthquake.getmTimeInMilliseconds());
+            properties.put("url", earthquake.getmUrl());
+
+            JSONObject feature = new JSONObject();
+            feature.put("properties", properties);
+            if (earthquake.hasCoordinates()) {
+                JSONArray coordinates = new JSONArray();
+                coordinates.put(earthquake.getmLongitude());
+                coordinates.put(earthquake.getmLatitude());
+                JSONObject geometry = new JSONObject();
+                geometry.put("coordinates", coordinates);
+                feature.put("geometry", geometry);
+            }
+            features.put(feature);
+        }
+
+        JSONObject root = new JSONObject();
+        // JSONObject keeps the insertion order, the url goes first so streaming
+        // readers can check it before reading the features
+        root.put("url", key);
+        root.put("features", features);
+        return root.toString();
+    }
+
+    /**
+     * Reads the whole file into a String
+     */
+    private static String readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count = inputStream.read(buffer);
+            while (count != -1) {
+                output.write(buffer, 0, count);
+                count = inputStream.read(buffer);
+            }
+            return new String(output.toByteArray(), UTF_8);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
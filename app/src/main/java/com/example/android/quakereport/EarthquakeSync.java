@@ -0,0 +1,347 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background refresh of the saved filters.
+ *
+ * Every query the {@link EarthquakeLoader} runs is remembered as a saved filter. A sync
+ * fetches all of them with as few requests as possible and writes the results to the
+ * {@link EarthquakeStore}, where the loader finds them on the next launch.
+ */
+public final class EarthquakeSync {
+
+    private static final String LOG_TAG = EarthquakeSync.class.getSimpleName();
+
+    /* How often the sync job runs */
+    public static final long SYNC_PERIOD_MILLIS = 30 * 60 * 1000;
+
+    /* Stored results older than this are refetched by the loader */
+    public static final long STORE_MAX_AGE_MILLIS = 45 * 60 * 1000;
+
+    /* Number of saved filters kept, the least recently used one is dropped first */
+    private static final int MAX_SAVED_QUERIES = 5;
+
+    /* Preferences file holding the saved filters and the sync statistics */
+    private static final String PREFS_NAME = "earthquake_sync";
+    private static final String KEY_SAVED_QUERIES = "saved_queries";
+    private static final String KEY_LAST_SYNC_TIME = "last_sync_time";
+    private static final String KEY_LAST_SYNC_DURATION = "last_sync_duration_millis";
+    private static final String KEY_LAST_SYNC_BYTES = "last_sync_bytes";
+
+    /* Value of the orderby query parameter for most recent first */
+    private static final String ORDER_BY_TIME = "time";
+
+    private EarthquakeSync() {
+    }
+
+    /**
+     * Schedules the periodic sync job. Does nothing before Lollipop,
+     * where JobScheduler is not available.
+     */
+    public static void scheduleSync(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            EarthquakeSyncJobService.schedule(context);
+        }
+    }
+
+    /**
+     * Remembers the url as a saved filter, most recently used first. It replaces a saved
+     * url that only differs in its format.
+     */
+    public static synchronized void rememberQuery(Context context, String url) {
+        List<String> urls = getSavedQueries(context);
+        if (!urls.isEmpty() && urls.get(0).equals(url)) {
+            return;
+        }
+        removeQuery(urls, url);
+        urls.add(0, url);
+        while (urls.size() > MAX_SAVED_QUERIES) {
+            urls.remove(urls.size() - 1);
+        }
+        getPreferences(context).edit()
+                .putString(KEY_SAVED_QUERIES, TextUtils.join("\n", urls))
+                .apply();
+    }
+
+    /**
+     * Removes the urls with the same cache key as url from the list
+     */
+    private static void removeQuery(List<String> urls, String url) {
+        String key = QueryUtils.getCacheKey(url);
+        Iterator<String> iterator = urls.iterator();
+        while (iterator.hasNext()) {
+            if (QueryUtils.getCacheKey(iterator.next()).equals(key)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the saved filters, most recently used first
+     */
+    public static List<String> getSavedQueries(Context context) {
+        String saved = getPreferences(context).getString(KEY_SAVED_QUERIES, "");
+        List<String> urls = new ArrayList<>();
+        if (!TextUtils.isEmpty(saved)) {
+            urls.addAll(Arrays.asList(saved.split("\n")));
+        }
+        return urls;
+    }
+
+    /**
+     * Fetches every saved filter and stores the results. This is on a background thread.
+     *
+     * @return true if every request succeeded
+     */
+    public static boolean performSync(Context context) {
+        long startTime = SystemClock.elapsedRealtime();
+
+        // The current preferences are always synced even if never loaded before,
+        // in the format chosen now
+        List<String> urls = getSavedQueries(context);
+        String currentUrl = QueryUtils.buildRequestUrl(context);
+        removeQuery(urls, currentUrl);
+        urls.add(0, currentUrl);
+
+        EarthquakeStore store = new EarthquakeStore(context);
+        boolean success = true;
+        Map<String, List<String>> batches = batchQueries(urls);
+
+        // Start every request at once, the HttpTransport multiplexes them on its event loop
+        SyncResponseListener listener = new SyncResponseListener();
+        Map<String, Future<List<Earthquake>>> responses = new LinkedHashMap<>();
+        for (String batchUrl : batches.keySet()) {
+            responses.put(batchUrl, QueryUtils.fetchEarthquakeDataAsync(batchUrl, listener));
+        }
+
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            List<Earthquake> earthquakes = waitFor(responses.get(batch.getKey()));
+            if (earthquakes == null) {
+                success = false;
+                continue;
+            }
+            AlertNotifier.onEarthquakesLoaded(context, earthquakes);
+            for (String url : batch.getValue()) {
+                List<Earthquake> result = filterForQuery(earthquakes, url);
+                store.write(url, result);
+                EarthquakeCache.getInstance().put(url, result);
+            }
+        }
+
+        long duration = SystemClock.elapsedRealtime() - startTime;
+        long bytes = listener.getBytes();
+        Log.i(LOG_TAG, "Synced " + urls.size() + " filters with " + batches.size()
+                + " requests in " + duration + " ms, " + bytes + " bytes");
+        getPreferences(context).edit()
+                .putLong(KEY_LAST_SYNC_TIME, System.currentTimeMillis())
+                .putLong(KEY_LAST_SYNC_DURATION, duration)
+                .putLong(KEY_LAST_SYNC_BYTES, bytes)
+                .apply();
+        return success;
+    }
+
+    /**
+     * Returns a summary of the last sync for logs and debug screens
+     */
+    public static String getLastSyncStats(Context context) {
+        SharedPreferences prefs = getPreferences(context);
+        return "lastSyncTime=" + prefs.getLong(KEY_LAST_SYNC_TIME, 0)
+                + " durationMillis=" + prefs.getLong(KEY_LAST_SYNC_DURATION, 0)
+                + " bytes=" + prefs.getLong(KEY_LAST_SYNC_BYTES, 0);
+    }
+
+    /**
+     * Groups query urls that can be answered by one request.
+     *
+     * Queries with the same format and order share a request that uses the lowest
+     * minimum magnitude and the highest limit. When ordered by magnitude, filtering that
+     * result gives exactly each query's answer. When ordered by time the smaller
+     * magnitudes could push older events out of the limit, so only queries with the
+     * same minimum magnitude are merged.
+     *
+     * The urls are parsed without Uri, so this runs in plain JVM unit tests.
+     *
+     * @return the request urls, each mapped to the query urls it answers
+     */
+    static Map<String, List<String>> batchQueries(List<String> urls) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String url : urls) {
+            String orderBy = getQueryParameter(url, "orderby");
+            String key = getQueryParameter(url, "format") + "|" + orderBy;
+            if (ORDER_BY_TIME.equals(orderBy)) {
+                key += "|" + getQueryParameter(url, "minmag");
+            }
+            if (parseDouble(getQueryParameter(url, "minmag")) == null
+                    || parseInt(getQueryParameter(url, "limit")) == null) {
+                // Can't reason about this query, so it gets a request of its own
+                key = url;
+            }
+            List<String> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(url);
+        }
+
+        Map<String, List<String>> batches = new LinkedHashMap<>();
+        for (List<String> group : groups.values()) {
+            if (group.size() == 1) {
+                batches.put(group.get(0), group);
+                continue;
+            }
+            double minMagnitude = Double.MAX_VALUE;
+            int limit = 0;
+            for (String url : group) {
+                minMagnitude = Math.min(minMagnitude, parseDouble(getQueryParameter(url, "minmag")));
+                limit = Math.max(limit, parseInt(getQueryParameter(url, "limit")));
+            }
+            String first = group.get(0);
+            String batchUrl = EarthquakeActivity.USGS_REQUEST_URL
+                    + "?format=" + encode(getQueryParameter(first, "format"))
+                    + "&limit=" + limit
+                    + "&minmag=" + minMagnitude
+                    + "&orderby=" + encode(getQueryParameter(first, "orderby"));
+            batches.put(batchUrl, group);
+        }
+        return batches;
+    }
+
+    /**
+     * Returns the part of a batched result that answers the given query url
+     */
+    static List<Earthquake> filterForQuery(List<Earthquake> earthquakes, String url) {
+        Double minMagnitude = parseDouble(getQueryParameter(url, "minmag"));
+        Integer limit = parseInt(getQueryParameter(url, "limit"));
+        if (minMagnitude == null || limit == null) {
+            return earthquakes;
+        }
+
+        List<Earthquake> result = new ArrayList<>();
+        for (Earthquake earthquake : earthquakes) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (earthquake.getmMagnitude() >= minMagnitude) {
+                result.add(earthquake);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the result of the request, or null if it failed or the sync was interrupted
+     */
+    private static List<Earthquake> waitFor(Future<List<Earthquake>> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem syncing the earthquakes", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the decoded value of the first query parameter with the given name,
+     * or null if the url doesn't have it
+     */
+    static String getQueryParameter(String url, String name) {
+        int start = url.indexOf('?');
+        if (start < 0) {
+            return null;
+        }
+        int end = url.indexOf('#', start);
+        String query = url.substring(start + 1, end < 0 ? url.length() : end);
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            String parameterName = equals < 0 ? parameter : parameter.substring(0, equals);
+            if (decode(parameterName).equals(name)) {
+                return equals < 0 ? "" : decode(parameter.substring(equals + 1));
+            }
+        }
+        return null;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        } catch (IllegalArgumentException e) {
+            // A malformed escape, keep the raw value
+            return value;
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static Double parseDouble(String value) {
+        try {
+            return value == null ? null : Double.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Integer parseInt(String value) {
+        try {
+            return value == null ? null : Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sums the sizes of the responses of one sync. Every response is also passed on to
+     * the {@link EarthquakeFormatChooser}, like any other fetch.
+     */
+    private static class SyncResponseListener implements QueryUtils.ResponseListener {
+
+        private final AtomicLong mBytes = new AtomicLong();
+
+        @Override
+        public void onResponse(String format, long bytes, long networkMillis, long decodeMillis,
+                               int events) {
+            mBytes.addAndGet(bytes);
+            EarthquakeFormatChooser.getInstance().onResponse(format, bytes, networkMillis,
+                    decodeMillis, events);
+        }
+
+        long getBytes() {
+            return mBytes.get();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.quakereport;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * JobScheduler entry point of {@link EarthquakeSync}.
+ *
+ * Two jobs run the same sync: one whenever an unmetered network is available and
+ * one while the device is charging, since JobScheduler constraints can only be combined
+ * with "and". Only one sync runs at a time: a job starting while the other one's sync
+ * is running finishes at once, since that sync already covers it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class EarthquakeSyncJobService extends JobService {
+
+    private static final String LOG_TAG = EarthquakeSyncJobService.class.getSimpleName();
+
+    /* Ids of the sync jobs */
+    private static final int JOB_ID_UNMETERED = 1001;
+    private static final int JOB_ID_CHARGING = 1002;
+
+    /* Sync currently running, if any, along with the job that started it */
+    private SyncTask mTask;
+
+    /**
+     * Schedules the sync jobs unless they are already pending.
+     * Scheduling again would restart their period.
+     */
+    static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        boolean unmeteredPending = false;
+        boolean chargingPending = false;
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            unmeteredPending |= job.getId() == JOB_ID_UNMETERED;
+            chargingPending |= job.getId() == JOB_ID_CHARGING;
+        }
+
+        ComponentName service = new ComponentName(context, EarthquakeSyncJobService.class);
+        if (!unmeteredPending) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_UNMETERED, service)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                    .setPeriodic(EarthquakeSync.SYNC_PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+        if (!chargingPending) {
+            scheduler.schedule(new JobInfo.Builder(JOB_ID_CHARGING, service)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setRequiresCharging(true)
+                    .setPeriodic(EarthquakeSync.SYNC_PERIOD_MILLIS)
+                    .setPersisted(true)
+                    .build());
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (mTask != null) {
+            Log.v(LOG_TAG, "Sync already running for job " + mTask.mParams.getJobId()
+                    + ", job " + params.getJobId() + " has nothing to do");
+            return false;
+        }
+        Log.v(LOG_TAG, "Starting sync job " + params.getJobId());
+        // The sync may run without the activity, so the caches need the callbacks here too
+        MemoryBudget.getInstance().install(this);
+        mTask = new SyncTask(params);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        // The work continues on the background thread
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Only the job that started the sync owns it
+        if (mTask == null || mTask.mParams.getJobId() != params.getJobId()) {
+            return false;
+        }
+        mTask.cancel(true);
+        mTask = null;
+        // The constraints went away before the sync finished, so try again later
+        return true;
+    }
+
+    /**
+     * Runs the sync off the main thread and reports back to JobScheduler
+     */
+    private class SyncTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final JobParameters mParams;
+
+        SyncTask(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return EarthquakeSync.performSync(EarthquakeSyncJobService.this);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            if (mTask == this) {
+                mTask = null;
+            }
+            // A failed sync is retried with back off instead of waiting a whole period
+            jobFinished(mParams, !success);
+        }
+    }
+}
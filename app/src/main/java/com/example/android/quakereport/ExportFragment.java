@@ -0,0 +1,211 @@
+package com.example.android.quakereport;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs an export for {@link EarthquakeActivity} without a UI of its own.
+ *
+ * The fragment is retained, so the export keeps running when the activity is recreated
+ * for a configuration change and reports to the new activity. It is only cancelled when
+ * the user cancels it or leaves the activity, and the user is told when that happens.
+ */
+public class ExportFragment extends Fragment {
+
+    private static final String LOG_TAG = ExportFragment.class.getSimpleName();
+
+    /* Tag the fragment is added with */
+    public static final String TAG = "export";
+
+    /* Argument holding the export format */
+    private static final String ARG_FORMAT = "format";
+
+    /**
+     * Implemented by the activity to show the progress of the export
+     */
+    public interface Callbacks {
+        void onExportProgress(int exported, int total);
+
+        /**
+         * Called once the export finished, failed or was cancelled
+         */
+        void onExportFinished();
+    }
+
+    /* Activity the export reports to, null while it is being recreated */
+    private Callbacks mCallbacks;
+
+    /* Application context the results are shown with */
+    private Context mContext;
+
+    /* Running export, null once it is over */
+    private ExportTask mExportTask;
+
+    /* Last progress, shown again by a recreated activity */
+    private int mExported;
+    private int mTotal;
+
+    /**
+     * Returns a fragment exporting the current query in the format
+     *
+     * @param format FORMAT_CSV or FORMAT_GEOJSON of {@link EarthquakeExporter}
+     */
+    public static ExportFragment newInstance(String format) {
+        Bundle args = new Bundle();
+        args.putString(ARG_FORMAT, format);
+        ExportFragment fragment = new ExportFragment();
+        fragment.setArguments(args);
+        return fragment;
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        mCallbacks = (Callbacks) activity;
+        mContext = activity.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // Only called once, a retained fragment is not created again with the activity
+        setRetainInstance(true);
+        mExportTask = new ExportTask(getArguments().getString(ARG_FORMAT));
+        mExportTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        mCallbacks = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // A retained fragment is only destroyed when the activity goes away for good.
+        // The fragment manager is tearing down, so the fragment must not remove itself.
+        if (mExportTask != null) {
+            stop();
+        }
+    }
+
+    /**
+     * Returns true until the export is over
+     */
+    public boolean isRunning() {
+        return mExportTask != null;
+    }
+
+    public int getExported() {
+        return mExported;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Stops the export at the user's request and removes the fragment.
+     * The activity is told through onExportFinished.
+     */
+    public void cancel() {
+        if (mExportTask == null) {
+            return;
+        }
+        stop();
+        remove();
+    }
+
+    /**
+     * Cancels the task and tells the activity and the user. onCancelled would only run
+     * after the fragment is gone, so the export is finished here.
+     */
+    private void stop() {
+        mExportTask.cancel(true);
+        finish();
+        Toast.makeText(mContext, R.string.export_cancelled, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Forgets the export and tells the activity
+     */
+    private void finish() {
+        mExportTask = null;
+        if (mCallbacks != null) {
+            mCallbacks.onExportFinished();
+        }
+    }
+
+    /**
+     * Removes the fragment once its export is over
+     */
+    private void remove() {
+        // The export may end while the activity is stopped and its state already saved
+        if (isAdded()) {
+            getFragmentManager().beginTransaction().remove(this).commitAllowingStateLoss();
+        }
+    }
+
+    /**
+     * Runs the {@link EarthquakeExporter}. AsyncTask's own isCancelled() is what the
+     * exporter checks between events.
+     */
+    private class ExportTask extends AsyncTask<Void, Integer, File>
+            implements EarthquakeExporter.Listener {
+
+        private final String mFormat;
+
+        ExportTask(String format) {
+            mFormat = format;
+        }
+
+        @Override
+        protected File doInBackground(Void... voids) {
+            try {
+                return new EarthquakeExporter(mContext).export(mFormat, this);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem exporting the earthquakes", e);
+                return null;
+            }
+        }
+
+        @Override
+        public void onProgress(int exported, int total) {
+            publishProgress(exported, total);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mExported = values[0];
+            mTotal = values[1];
+            if (mCallbacks != null) {
+                mCallbacks.onExportProgress(mExported, mTotal);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (mExportTask != this) {
+                return;
+            }
+            finish();
+            remove();
+            if (file != null) {
+                Toast.makeText(mContext,
+                        mContext.getString(R.string.export_done, file.getAbsolutePath()),
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(mContext, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.android.quakereport;
+
+import java.util.List;
+
+/**
+ * {@link EarthquakeDecoder} for the USGS "geojson" format.
+ */
+public class GeoJsonEarthquakeDecoder implements EarthquakeDecoder {
+
+    /* Value of the format query parameter for GeoJSON responses */
+    public static final String FORMAT = "geojson";
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public List<Earthquake> decode(String response) {
+        return QueryUtils.extractFeatureFromJson(response);
+    }
+}
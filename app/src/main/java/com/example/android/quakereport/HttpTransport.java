@@ -0,0 +1,857 @@
+package com.example.android.quakereport;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Makes HTTP GET requests without a thread per request. All connections in flight are
+ * non-blocking sockets driven by a single event loop thread, so a burst of queries goes
+ * on the wire at once whatever its size. A small pool of worker threads resolves host
+ * names, which can block, and hands finished bodies to their {@link ResponseHandler},
+ * so decoding never holds up the event loop.
+ *
+ * Each request gets its own HTTP/1.1 connection, closed after the response. https is
+ * spoken through an SSLEngine and the host name is checked with the platform's default
+ * HostnameVerifier, like HttpsURLConnection does.
+ *
+ * {@link #get(URL)} is a thin blocking wrapper around {@link #enqueue(URL, ResponseHandler)}.
+ * {@link #open(URL)} streams a single large response through HttpURLConnection instead.
+ */
+public final class HttpTransport {
+
+    private static final String LOG_TAG = HttpTransport.class.getSimpleName();
+
+    /* Number of threads resolving hosts and running the response handlers */
+    private static final int WORKER_COUNT = 4;
+
+    /* Idle worker threads are stopped after this delay */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+
+    /* Longest time a connection may go without any bytes read or written */
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /* How often the event loop looks for timed out and cancelled requests */
+    private static final long SWEEP_MILLIS = 250;
+
+    /* Size of the socket reads of plain http connections */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final HttpTransport sInstance = new HttpTransport();
+
+    /**
+     * Turns a response body into the result of a request
+     */
+    public interface ResponseHandler<T> {
+
+        /**
+         * Called on a worker thread with the body of a 200 response, which is the given
+         * range of the buffer. It must not wait for other requests of the transport.
+         */
+        T onResponse(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /* Returns the body as a String */
+    private static final ResponseHandler<String> STRING_HANDLER = new ResponseHandler<String>() {
+        @Override
+        public String onResponse(byte[] buffer, int offset, int length) {
+            return new String(buffer, offset, length, UTF_8);
+        }
+    };
+
+    private final ExecutorService mWorkers;
+
+    /* Requests waiting for the event loop to open their connection */
+    private final Queue<Exchange<?>> mPending = new ConcurrentLinkedQueue<>();
+
+    /* Selector of the event loop, both are started by the first request */
+    private Selector mSelector;
+
+    private HttpTransport() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "HttpTransport #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        mWorkers = executor;
+    }
+
+    /**
+     * Returns the transport shared by the whole app
+     */
+    public static HttpTransport getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts a GET request for the url and returns at once. The future holds the result
+     * of the handler, or fails with the IOException of a failed request. Cancelling the
+     * future closes the connection.
+     *
+     * @param url request url, a null url fails the future
+     */
+    public <T> Future<T> enqueue(URL url, ResponseHandler<T> handler) {
+        final Exchange<T> exchange = new Exchange<>(url, handler);
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Resolving the host blocks, so it is done before the event loop
+                    // takes over
+                    exchange.resolve();
+                    register(exchange);
+                } catch (IOException e) {
+                    exchange.fail(e);
+                }
+            }
+        });
+        return exchange.mResult;
+    }
+
+    /**
+     * Makes the request and waits for its response, the blocking counterpart of
+     * {@link #enqueue(URL, ResponseHandler)}
+     *
+     * @throws IOException if the request fails or the server doesn't answer with 200
+     */
+    public String get(URL url) throws IOException {
+        return await(enqueue(url, STRING_HANDLER));
+    }
+
+    /**
+     * Waits for the result of a request. The request is cancelled if the calling thread
+     * is interrupted.
+     *
+     * @throws IOException if the request failed or the server didn't answer with 200
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Makes the request on the calling thread and returns the response body as a stream,
+     * for responses too large to hold in memory. Closing the stream closes the connection.
+     *
+     * @throws IOException if the request fails or the server doesn't answer with 200
+     */
+    public InputStream open(URL url) throws IOException {
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        try {
+            urlConnection.connect();
+            if (urlConnection.getResponseCode() != 200) {
+                throw new IOException("Error Response Code: " + urlConnection.getResponseCode());
+            }
+            return new FilterInputStream(urlConnection.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        urlConnection.disconnect();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a resolved request to the event loop, starting the loop if needed
+     */
+    private void register(Exchange<?> exchange) throws IOException {
+        Selector selector;
+        synchronized (this) {
+            if (mSelector == null) {
+                final Selector loopSelector = Selector.open();
+                Thread loop = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop(loopSelector);
+                    }
+                }, "HttpTransport loop");
+                loop.setDaemon(true);
+                loop.start();
+                mSelector = loopSelector;
+            }
+            selector = mSelector;
+        }
+        mPending.add(exchange);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the event loop. Channels are only registered and touched on this thread.
+     */
+    private void loop(Selector selector) {
+        while (true) {
+            try {
+                selector.select(SWEEP_MILLIS);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem waiting for the connections", e);
+            }
+
+            Exchange<?> pending = mPending.poll();
+            while (pending != null) {
+                pending.connect(selector);
+                pending = mPending.poll();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((Exchange<?>) key.attachment()).onReady();
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((Exchange<?>) key.attachment()).checkTimeout(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Future completed by the transport instead of by running a task
+     */
+    private static final class Result<T> extends FutureTask<T> {
+
+        Result() {
+            super(new Callable<T>() {
+                @Override
+                public T call() {
+                    throw new IllegalStateException("Completed by the transport");
+                }
+            });
+        }
+
+        void complete(T value) {
+            set(value);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+
+    /**
+     * One request and its connection. Everything but resolve() runs on the event loop,
+     * until the body is handed to a worker.
+     */
+    private final class Exchange<T> {
+
+        private final URL mUrl;
+        private final ResponseHandler<T> mHandler;
+        private final Result<T> mResult = new Result<>();
+        private final Response mResponse = new Response();
+
+        private InetSocketAddress mAddress;
+
+        /* Bytes of the request still to be sent, before encryption for https */
+        private ByteBuffer mRequest;
+
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+
+        /* Time the request fails if nothing happens on the connection */
+        private long mDeadline;
+
+        /* Only for https, null for plain http */
+        private SSLEngine mEngine;
+        private boolean mVerified;
+
+        /* Encrypted bytes to send, and received bytes not decrypted yet,
+         * both filled from position 0 */
+        private ByteBuffer mNetOut;
+        private ByteBuffer mNetIn;
+
+        /* Decrypted bytes of https, the received bytes of plain http */
+        private ByteBuffer mAppIn;
+
+        Exchange(URL url, ResponseHandler<T> handler) {
+            mUrl = url;
+            mHandler = handler;
+        }
+
+        /**
+         * Looks up the address of the host and prepares the request. Runs on a worker.
+         */
+        void resolve() throws IOException {
+            if (mUrl == null) {
+                throw new IOException("Invalid request url");
+            }
+            String protocol = mUrl.getProtocol();
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                throw new IOException("Unsupported protocol: " + protocol);
+            }
+            int port = mUrl.getPort() == -1 ? mUrl.getDefaultPort() : mUrl.getPort();
+            mAddress = new InetSocketAddress(InetAddress.getByName(mUrl.getHost()), port);
+
+            String path = mUrl.getFile().isEmpty() ? "/" : mUrl.getFile();
+            String host = mUrl.getPort() == -1 ? mUrl.getHost() : mUrl.getHost() + ":" + port;
+            mRequest = ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "Accept-Encoding: gzip\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(UTF_8));
+        }
+
+        /**
+         * Opens the connection, unless the request was cancelled while it was resolved
+         */
+        void connect(Selector selector) {
+            if (mResult.isDone()) {
+                return;
+            }
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                mKey = mChannel.register(selector, 0, this);
+                mDeadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MILLIS;
+                if (mChannel.connect(mAddress)) {
+                    onConnected();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Called by the event loop when the socket can make progress
+         */
+        void onReady() {
+            if (!mKey.isValid()) {
+                return;
+            }
+            try {
+                if (mKey.isConnectable()) {
+                    if (mChannel.finishConnect()) {
+                        onConnected();
+                    }
+                    return;
+                }
+                mDeadline = SystemClock.elapsedRealtime() + READ_TIMEOUT_MILLIS;
+                if (mEngine == null) {
+                    exchangePlain();
+                } else {
+                    exchangeTls();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Closes the connection of a cancelled or timed out request
+         */
+        void checkTimeout(long now) {
+            if (mResult.isCancelled()) {
+                close();
+            } else if (now > mDeadline) {
+                fail(new SocketTimeoutException("No answer from " + mUrl.getHost()));
+            }
+        }
+
+        private void onConnected() throws IOException {
+            mDeadline = SystemClock.elapsedRealtime() + READ_TIMEOUT_MILLIS;
+            if ("https".equals(mUrl.getProtocol())) {
+                try {
+                    mEngine = SSLContext.getDefault().createSSLEngine(
+                            mUrl.getHost(), mAddress.getPort());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+                mEngine.setUseClientMode(true);
+                SSLSession session = mEngine.getSession();
+                mNetOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                mNetIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                mAppIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+                mEngine.beginHandshake();
+                exchangeTls();
+            } else {
+                mAppIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                exchangePlain();
+            }
+        }
+
+        /**
+         * Sends the request, then reads once per call so a fast response doesn't
+         * starve the other connections
+         */
+        private void exchangePlain() throws IOException {
+            if (mRequest.hasRemaining()) {
+                mChannel.write(mRequest);
+                if (mRequest.hasRemaining()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            mAppIn.clear();
+            int count = mChannel.read(mAppIn);
+            if (count < 0) {
+                finish();
+                return;
+            }
+            mAppIn.flip();
+            mResponse.append(mAppIn);
+            if (mResponse.isComplete()) {
+                finish();
+            } else {
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Drives the handshake, the request and the response through the SSLEngine
+         * until the socket can't make progress
+         */
+        private void exchangeTls() throws IOException {
+            while (true) {
+                if (!flush()) {
+                    mKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                switch (mEngine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        // Certificate checks, only a few per connection
+                        Runnable task = mEngine.getDelegatedTask();
+                        while (task != null) {
+                            task.run();
+                            task = mEngine.getDelegatedTask();
+                        }
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        break;
+                    case NEED_UNWRAP:
+                        if (!unwrap()) {
+                            return;
+                        }
+                        break;
+                    default:
+                        if (!mVerified) {
+                            verifyHost();
+                        }
+                        if (mRequest.hasRemaining()) {
+                            wrap(mRequest);
+                        } else if (!unwrap()) {
+                            return;
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Writes pending encrypted bytes and returns true once all of them are sent
+         */
+        private boolean flush() throws IOException {
+            if (mNetOut.position() == 0) {
+                return true;
+            }
+            mNetOut.flip();
+            mChannel.write(mNetOut);
+            boolean flushed = !mNetOut.hasRemaining();
+            mNetOut.compact();
+            return flushed;
+        }
+
+        private void wrap(ByteBuffer source) throws IOException {
+            SSLEngineResult result = mEngine.wrap(source, mNetOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // mNetOut was flushed, so the record needs a larger buffer
+                mNetOut = enlarge(mNetOut, mEngine.getSession().getPacketBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Connection closed before the request was sent");
+            }
+        }
+
+        /**
+         * Decrypts the received bytes, reading more when a whole record isn't there.
+         * Returns false when the connection has to wait for the socket or is finished.
+         */
+        private boolean unwrap() throws IOException {
+            mNetIn.flip();
+            SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+            mNetIn.compact();
+            mAppIn.flip();
+            mResponse.append(mAppIn);
+            mAppIn.clear();
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    mAppIn = enlarge(mAppIn, mEngine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!mNetIn.hasRemaining()) {
+                        mNetIn = enlarge(mNetIn, mEngine.getSession().getPacketBufferSize());
+                    }
+                    int count = mChannel.read(mNetIn);
+                    if (count == 0) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    } else if (count < 0) {
+                        // Servers often close without a close_notify
+                        finish();
+                        return false;
+                    }
+                    return true;
+                case CLOSED:
+                    finish();
+                    return false;
+                default:
+                    if (mResponse.isComplete()) {
+                        finish();
+                        return false;
+                    }
+                    return true;
+            }
+        }
+
+        private void verifyHost() throws IOException {
+            if (!HttpsURLConnection.getDefaultHostnameVerifier()
+                    .verify(mUrl.getHost(), mEngine.getSession())) {
+                throw new SSLPeerUnverifiedException("Hostname " + mUrl.getHost() + " not verified");
+            }
+            mVerified = true;
+        }
+
+        /**
+         * Closes the connection and hands the body to the handler on a worker
+         */
+        private void finish() {
+            close();
+            if (mResult.isDone()) {
+                return;
+            }
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mResult.complete(mResponse.handleBody(mHandler));
+                    } catch (IOException e) {
+                        mResult.fail(e);
+                    } catch (RuntimeException e) {
+                        mResult.fail(e);
+                    }
+                }
+            });
+        }
+
+        void fail(Throwable cause) {
+            close();
+            mResult.fail(cause);
+        }
+
+        private void close() {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.v(LOG_TAG, "Problem closing the connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a larger buffer holding the data written to the buffer so far
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumSize) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumSize));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * Bytes of a response as they arrive, with its head parsed as soon as it is complete.
+     * The body is framed by Content-Length, chunked encoding or the end of the connection.
+     */
+    private static final class Response {
+
+        private byte[] mData = new byte[8192];
+        private int mLength;
+
+        /* Offset of the body, -1 until the head is complete */
+        private int mBodyStart = -1;
+
+        private int mStatusCode;
+        private long mContentLength = -1;
+        private boolean mChunked;
+        private boolean mGzip;
+
+        void append(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (mLength + count > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + count));
+            }
+            buffer.get(mData, mLength, count);
+            int scanFrom = Math.max(0, mLength - 3);
+            mLength += count;
+            if (mBodyStart < 0) {
+                parseHead(scanFrom);
+            }
+        }
+
+        /**
+         * Returns true once the whole body is there, false while the response
+         * can only end with the connection
+         */
+        boolean isComplete() {
+            if (mBodyStart < 0) {
+                return false;
+            } else if (mContentLength >= 0) {
+                return mLength - mBodyStart >= mContentLength;
+            } else if (mChunked) {
+                // Only walk the chunks when the last one may have arrived
+                return endsWith("0\r\n\r\n") && decodeChunks(false) >= 0;
+            }
+            return false;
+        }
+
+        /**
+         * Checks the response and passes its body to the handler
+         *
+         * @throws IOException if the server didn't answer with 200 or the body is cut short
+         */
+        <T> T handleBody(ResponseHandler<T> handler) throws IOException {
+            if (mBodyStart < 0) {
+                throw new IOException("Connection closed before the response");
+            } else if (mStatusCode != 200) {
+                throw new IOException("Error Response Code: " + mStatusCode);
+            }
+
+            int length;
+            if (mContentLength >= 0) {
+                if (mLength - mBodyStart < mContentLength) {
+                    throw new IOException("Connection closed before the end of the response");
+                }
+                length = (int) mContentLength;
+            } else if (mChunked) {
+                length = decodeChunks(true);
+                if (length < 0) {
+                    throw new IOException("Connection closed before the last chunk");
+                }
+            } else {
+                length = mLength - mBodyStart;
+            }
+
+            if (mGzip) {
+                byte[] body = gunzip(mData, mBodyStart, length);
+                return handler.onResponse(body, 0, body.length);
+            }
+            return handler.onResponse(mData, mBodyStart, length);
+        }
+
+        /**
+         * Parses the status line and the headers once the blank line ending them arrived
+         */
+        private void parseHead(int scanFrom) {
+            for (int i = scanFrom; i + 3 < mLength; i++) {
+                if (mData[i] == '\r' && mData[i + 1] == '\n'
+                        && mData[i + 2] == '\r' && mData[i + 3] == '\n') {
+                    mBodyStart = i + 4;
+                    break;
+                }
+            }
+            if (mBodyStart < 0) {
+                return;
+            }
+
+            String[] lines = new String(mData, 0, mBodyStart, US_ASCII).split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            try {
+                mStatusCode = statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : -1;
+            } catch (NumberFormatException e) {
+                mStatusCode = -1;
+            }
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.US);
+                if (name.equals("content-length")) {
+                    try {
+                        mContentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        mContentLength = -1;
+                    }
+                } else if (name.equals("transfer-encoding")) {
+                    mChunked = value.contains("chunked");
+                } else if (name.equals("content-encoding")) {
+                    mGzip = value.equals("gzip");
+                }
+            }
+            if (mChunked) {
+                // Chunked encoding wins over a Content-Length
+                mContentLength = -1;
+            }
+        }
+
+        /**
+         * Walks the chunks of the body and returns its length without the chunk framing,
+         * or -1 if the last chunk hasn't arrived. Moves the data of the chunks together
+         * at the start of the body when compact is true.
+         */
+        private int decodeChunks(boolean compact) {
+            int read = mBodyStart;
+            int write = mBodyStart;
+            while (true) {
+                int lineEnd = indexOfLineEnd(read);
+                if (lineEnd < 0) {
+                    return -1;
+                }
+                String sizeLine = new String(mData, read, lineEnd - read, US_ASCII);
+                int extension = sizeLine.indexOf(';');
+                if (extension >= 0) {
+                    sizeLine = sizeLine.substring(0, extension);
+                }
+                int size;
+                try {
+                    size = Integer.parseInt(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+                read = lineEnd + 2;
+                if (size == 0) {
+                    return write - mBodyStart;
+                } else if (read + size + 2 > mLength) {
+                    return -1;
+                }
+                if (compact) {
+                    System.arraycopy(mData, read, mData, write, size);
+                }
+                write += size;
+                read += size + 2;
+            }
+        }
+
+        private int indexOfLineEnd(int from) {
+            for (int i = from; i + 1 < mLength; i++) {
+                if (mData[i] == '\r' && mData[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean endsWith(String suffix) {
+            if (mLength - mBodyStart < suffix.length()) {
+                return false;
+            }
+            for (int i = 0; i < suffix.length(); i++) {
+                if (mData[mLength - suffix.length() + i] != suffix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[] gunzip(byte[] data, int offset, int length) throws IOException {
+            GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data, offset, length));
+            try {
+                ByteArrayOutputStream output = new ByteArrayOutputStream(length * 4);
+                byte[] buffer = new byte[8192];
+                int count = input.read(buffer);
+                while (count != -1) {
+                    output.write(buffer, 0, count);
+                    count = input.read(buffer);
+                }
+                return output.toByteArray();
+            } finally {
+                input.close();
+            }
+        }
+    }
+}
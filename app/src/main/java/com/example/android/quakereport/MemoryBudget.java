@@ -0,0 +1,267 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the in-memory caches of the app within a shared budget and empties them
+ * when the system asks the app to trim its memory.
+ *
+ * Every cache and event list registers as a {@link Tier}. Tiers with a lower priority
+ * are trimmed first: those rebuilt from data already in memory go first, then those
+ * whose data is also on disk and comes back without a network round trip, and last
+ * those that would have to be downloaded again. The list on screen is counted but
+ * never trimmed, so the caches make room for it.
+ *
+ * The more pressing the trim level, the more priorities are trimmed and the lower the
+ * usage they are trimmed down to.
+ *
+ * Tiers only hold their locks for short in-memory work, so trims run straight on the
+ * thread the system calls back on.
+ */
+public final class MemoryBudget implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = MemoryBudget.class.getSimpleName();
+
+    /* Priority of tiers rebuilt from data other tiers or the UI still hold */
+    public static final int PRIORITY_REBUILT = 0;
+
+    /* Priority of tiers whose content can be read back from disk */
+    public static final int PRIORITY_DISK_BACKED = 1;
+
+    /* Priority of tiers whose content has to be downloaded again */
+    public static final int PRIORITY_NETWORK_BACKED = 2;
+
+    /* Priority of tiers the UI is showing, they ignore trims */
+    public static final int PRIORITY_SHOWN = 3;
+
+    /* Fraction of the maximum heap the registered tiers may use together */
+    private static final long BUDGET_DIVISOR = 8;
+
+    /* Fractions of the budget the usage is trimmed down to, the lower for the more
+     * pressing trim levels */
+    private static final long RUNNING_MODERATE_DIVISOR = 2;
+    private static final long RUNNING_LOW_DIVISOR = 4;
+
+    /* Rough size of an Earthquake object without its strings */
+    private static final long EARTHQUAKE_BASE_BYTES = 64;
+
+    private static final MemoryBudget sInstance = new MemoryBudget();
+
+    /**
+     * An in-memory structure managed by the budget
+     */
+    public interface Tier {
+
+        /**
+         * Returns a short name for the debug stats
+         */
+        String getName();
+
+        /**
+         * Returns the order in which tiers are trimmed, lowest first
+         */
+        int getPriority();
+
+        /**
+         * Returns an estimate of the memory held, in bytes
+         */
+        long getSizeInBytes();
+
+        /**
+         * Drops content until at most maxBytes are held, 0 to empty the tier
+         */
+        void trimToSize(long maxBytes);
+    }
+
+    private final List<Tier> mTiers = new ArrayList<>();
+
+    private final long mBudgetBytes = Runtime.getRuntime().maxMemory() / BUDGET_DIVISOR;
+
+    private boolean mInstalled;
+
+    /* Directory where tiers write what they trim, null before install */
+    private File mSpillDirectory;
+
+    private int mTrimCount;
+
+    private MemoryBudget() {
+    }
+
+    /**
+     * Returns the budget shared by the whole app
+     */
+    public static MemoryBudget getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts listening to the system memory callbacks. Calling it again does nothing.
+     */
+    public synchronized void install(Context context) {
+        if (!mInstalled) {
+            context.getApplicationContext().registerComponentCallbacks(this);
+            mSpillDirectory = context.getApplicationContext().getCacheDir();
+            mInstalled = true;
+        }
+    }
+
+    /**
+     * Returns the directory where tiers write what they trim so they can read it back,
+     * or null if the budget isn't installed yet
+     */
+    public synchronized File getSpillDirectory() {
+        return mSpillDirectory;
+    }
+
+    /**
+     * Adds a tier to the budget. Registering a tier again does nothing.
+     */
+    public synchronized void register(Tier tier) {
+        if (mTiers.contains(tier)) {
+            return;
+        }
+        mTiers.add(tier);
+        Collections.sort(mTiers, new Comparator<Tier>() {
+            @Override
+            public int compare(Tier a, Tier b) {
+                return a.getPriority() - b.getPriority();
+            }
+        });
+    }
+
+    /**
+     * Removes a tier from the budget, for tiers that live shorter than the app
+     */
+    public synchronized void unregister(Tier tier) {
+        mTiers.remove(tier);
+    }
+
+    /**
+     * Trims tiers in priority order while the budget is exceeded.
+     * Tiers call this after they grow.
+     */
+    public void enforce() {
+        trim(Integer.MAX_VALUE, mBudgetBytes);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is likely to be killed, or the app is about to slow the
+            // device down, so everything goes
+            trimForSystem(Integer.MAX_VALUE, 0);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            // Drop what can be read back from disk
+            trimForSystem(PRIORITY_DISK_BACKED, mBudgetBytes / RUNNING_LOW_DIVISOR);
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+            // Only drop what is rebuilt from data still in memory
+            trimForSystem(PRIORITY_REBUILT, mBudgetBytes / RUNNING_MODERATE_DIVISOR);
+        }
+        Log.i(LOG_TAG, "onTrimMemory(" + level + ") " + getDebugStats());
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimForSystem(Integer.MAX_VALUE, 0);
+        Log.i(LOG_TAG, "onLowMemory() " + getDebugStats());
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Nothing to do, only the memory callbacks matter here
+    }
+
+    /**
+     * Returns the budget, the memory used and the size of every tier
+     */
+    public String getDebugStats() {
+        List<Tier> tiers;
+        int trimCount;
+        synchronized (this) {
+            tiers = new ArrayList<>(mTiers);
+            trimCount = mTrimCount;
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append("budget=").append(mBudgetBytes)
+                .append(" used=").append(getUsedBytes(tiers))
+                .append(" trims=").append(trimCount);
+        for (Tier tier : tiers) {
+            stats.append(' ').append(tier.getName()).append('=').append(tier.getSizeInBytes());
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Returns an estimate of the memory held by a list of earthquakes
+     */
+    public static long estimateSize(List<Earthquake> earthquakes) {
+        long size = 0;
+        for (Earthquake earthquake : earthquakes) {
+            size += estimateSize(earthquake);
+        }
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the memory held by one earthquake, two bytes per character
+     */
+    public static long estimateSize(Earthquake earthquake) {
+        long size = EARTHQUAKE_BASE_BYTES;
+        if (earthquake.getmLocation() != null) {
+            size += 2 * earthquake.getmLocation().length();
+        }
+        if (earthquake.getmUrl() != null) {
+            size += 2 * earthquake.getmUrl().length();
+        }
+        return size;
+    }
+
+    /**
+     * Trims on a request of the system, counted in the debug stats
+     */
+    private void trimForSystem(int maxPriority, long targetBytes) {
+        synchronized (this) {
+            mTrimCount++;
+        }
+        trim(maxPriority, targetBytes);
+    }
+
+    /**
+     * Trims the tiers up to the given priority, lowest first, each only as much as needed
+     * until the memory used by all tiers is at most targetBytes
+     */
+    private void trim(int maxPriority, long targetBytes) {
+        List<Tier> tiers;
+        synchronized (this) {
+            tiers = new ArrayList<>(mTiers);
+        }
+        long used = getUsedBytes(tiers);
+        for (Tier tier : tiers) {
+            if (used <= targetBytes || tier.getPriority() > maxPriority) {
+                return;
+            }
+            long size = tier.getSizeInBytes();
+            long keep = Math.max(0, size - (used - targetBytes));
+            tier.trimToSize(keep);
+            used -= size - tier.getSizeInBytes();
+            Log.v(LOG_TAG, "Trimmed " + tier.getName() + " to " + keep + " bytes");
+        }
+    }
+
+    private static long getUsedBytes(List<Tier> tiers) {
+        long used = 0;
+        for (Tier tier : tiers) {
+            used += tier.getSizeInBytes();
+        }
+        return used;
+    }
+}
@@ -1,21 +1,26 @@
 package com.example.android.quakereport;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper methods related to requesting and receiving earthquake data from USGS.
@@ -24,6 +29,23 @@ public final class QueryUtils {
 
     private static final String LOG_TAG = QueryUtils.class.getSimpleName();
 
+    /* Value of the format setting letting the EarthquakeFormatChooser pick the format */
+    public static final String FORMAT_AUTO = "auto";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Total number of bytes read from the server by this process */
+    private static final AtomicLong sBytesRead = new AtomicLong();
+
+    /**
+     * Receives the size of each decoded response and the time taken to fetch and decode it.
+     * This may be called on any thread.
+     */
+    interface ResponseListener {
+        void onResponse(String format, long bytes, long networkMillis, long decodeMillis,
+                        int events);
+    }
+
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
      * This class is only meant to hold static variables and methods, which can be accessed
@@ -34,29 +56,190 @@ public final class QueryUtils {
 
 
 
+    /**
+     * Builds the USGS query url from the filters saved in the preferences
+     */
+    public static String buildRequestUrl(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String format = sharedPrefs.getString(
+                context.getString(R.string.settings_format_key),
+                context.getString(R.string.settings_format_default));
+        if (FORMAT_AUTO.equals(format)) {
+            format = EarthquakeFormatChooser.getInstance().choose(context);
+        }
+        return buildRequestUrl(context, format);
+    }
+
+    /**
+     * Builds the USGS query url from the filters saved in the preferences,
+     * asking for the given response format
+     */
+    public static String buildRequestUrl(Context context, String format) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String minMagnitude = sharedPrefs.getString(
+                context.getString(R.string.settings_min_magnitude_key),
+                context.getString(R.string.settings_min_magnitude_default));
+
+        String orderBy = sharedPrefs.getString(
+                context.getString(R.string.settings_order_by_key),
+                context.getString(R.string.settings_order_by_default)
+        );
+
+        String noOfEarthquake = sharedPrefs.getString(
+                context.getString(R.string.setting_min_noOfEarthquake_key),
+                context.getString(R.string.setting_min_noOfEarthquake_default));
+
+        Uri baseUri = Uri.parse(EarthquakeActivity.USGS_REQUEST_URL);
+        Uri.Builder uriBuilder = baseUri.buildUpon();
+
+        uriBuilder.appendQueryParameter("format", format);
+        uriBuilder.appendQueryParameter("limit", noOfEarthquake);
+        uriBuilder.appendQueryParameter("minmag", minMagnitude);
+        uriBuilder.appendQueryParameter("orderby", orderBy);
+
+        return uriBuilder.toString();
+    }
+
+    /**
+     * Returns the url without its format parameter. The same filters give the same
+     * events in any format, so results are cached under this key and a result fetched
+     * in one format serves a query asking for another.
+     */
+    public static String getCacheKey(String url) {
+        Uri uri = Uri.parse(url);
+        Uri.Builder uriBuilder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (!name.equals("format")) {
+                uriBuilder.appendQueryParameter(name, uri.getQueryParameter(name));
+            }
+        }
+        return uriBuilder.toString();
+    }
+
+    /**
+     * Returns true if the device has a connected network. Safe to call from any thread.
+     */
+    public static boolean isConnected(Context context) {
+        ConnectivityManager cnnMgr = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        // Get details on the currently active default data network
+        NetworkInfo networkInfo = cnnMgr.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * Returns the total number of bytes read from the server by this process
+     */
+    public static long getBytesRead() {
+        return sBytesRead.get();
+    }
+
+    /**
+     * Returns the {@link EarthquakeDecoder} for the given USGS format,
+     * falling back to GeoJSON for unknown or missing formats.
+     */
+    public static EarthquakeDecoder getDecoder(String format) {
+        if (CsvEarthquakeDecoder.FORMAT.equals(format)) {
+            return new CsvEarthquakeDecoder();
+        }
+        return new GeoJsonEarthquakeDecoder();
+    }
+
     /**
      * Query the USGS dataset and return a list of {@link Earthquake} objects.
+     * The response is decoded according to the "format" query parameter of the url.
      */
     public static List<Earthquake> fetchEarthquakeData(String requestUrl) {
-        Log.v(LOG_TAG,"fetchEarthquakeData is called, fetching the earthquakes from url");
-        // Create URL object
-        URL url = createUrl(requestUrl);
+        String format = Uri.parse(requestUrl).getQueryParameter("format");
+        return fetchEarthquakeData(requestUrl, getDecoder(format));
+    }
+
+    /**
+     * Query the USGS dataset and return a list of {@link Earthquake} objects
+     * decoded with the given {@link EarthquakeDecoder}.
+     */
+    public static List<Earthquake> fetchEarthquakeData(String requestUrl, EarthquakeDecoder decoder) {
+        return fetchEarthquakeData(requestUrl, decoder, EarthquakeFormatChooser.getInstance());
+    }
 
-        // Perform HTTP request to the URL and receive a JSON response back
-        String jsonResponse = null;
+    /**
+     * Query the USGS dataset and hand the measurements of the response to the listener
+     * instead of the {@link EarthquakeFormatChooser}. This waits for the asynchronous
+     * request, so it must not be called from a response handler of the {@link HttpTransport}.
+     */
+    static List<Earthquake> fetchEarthquakeData(String requestUrl, EarthquakeDecoder decoder,
+                                                ResponseListener listener) {
+        Log.v(LOG_TAG,"fetchEarthquakeData is called, fetching the earthquakes from url");
         try {
-            jsonResponse = makeHttpRequest(url);
+            return HttpTransport.await(fetchEarthquakeDataAsync(requestUrl, decoder, listener));
         } catch (IOException e) {
             Log.e(LOG_TAG, "Problem making the HTTP request.", e);
+            return null;
         }
+    }
 
-        // Extract relevant fields from the JSON response and create a list of {@link Earthquake}s
-        List<Earthquake> earthquakes = extractFeatureFromJson(jsonResponse);
+    /**
+     * Query the USGS dataset without blocking. The request is multiplexed with the others
+     * in flight by the {@link HttpTransport}, and decoded on one of its workers.
+     *
+     * @return a Future holding the list of {@link Earthquake}s, which fails with the
+     * IOException of a failed request
+     */
+    public static Future<List<Earthquake>> fetchEarthquakeDataAsync(String requestUrl) {
+        return fetchEarthquakeDataAsync(requestUrl, EarthquakeFormatChooser.getInstance());
+    }
 
-        // Return the list of {@link Earthquake}s
-        return earthquakes;
+    /**
+     * Query the USGS dataset without blocking and hand the measurements of the response
+     * to the listener instead of the {@link EarthquakeFormatChooser}
+     */
+    static Future<List<Earthquake>> fetchEarthquakeDataAsync(String requestUrl,
+                                                             ResponseListener listener) {
+        EarthquakeDecoder decoder = getDecoder(Uri.parse(requestUrl).getQueryParameter("format"));
+        return fetchEarthquakeDataAsync(requestUrl, decoder, listener);
     }
 
+    /**
+     * Starts the request and decodes its response on a worker of the {@link HttpTransport}
+     *
+     * @return a Future failing with the IOException of a failed request
+     */
+    private static Future<List<Earthquake>> fetchEarthquakeDataAsync(
+            String requestUrl, final EarthquakeDecoder decoder, final ResponseListener listener) {
+        // Create URL object, a null url fails the request
+        URL url = createUrl(requestUrl);
+
+        final long requestStart = SystemClock.elapsedRealtime();
+        return HttpTransport.getInstance().enqueue(url,
+                new HttpTransport.ResponseHandler<List<Earthquake>>() {
+                    @Override
+                    public List<Earthquake> onResponse(byte[] buffer, int offset, int length) {
+                        long networkTime = SystemClock.elapsedRealtime() - requestStart;
+                        sBytesRead.addAndGet(length);
+                        String response = new String(buffer, offset, length, UTF_8);
+
+                        // Extract relevant fields from the response and create a list of {@link Earthquake}s
+                        long decodeStart = SystemClock.elapsedRealtime();
+                        List<Earthquake> earthquakes = decoder.decode(response);
+                        long decodeTime = SystemClock.elapsedRealtime() - decodeStart;
+                        int count = earthquakes == null ? 0 : earthquakes.size();
+
+                        // Log the size of the response and the time taken to fetch and decode it,
+                        // and hand them to the listener, usually the format chooser
+                        Log.v(LOG_TAG, "format=" + decoder.getFormat()
+                                + " bytes=" + length
+                                + " earthquakes=" + count
+                                + " networkMillis=" + networkTime
+                                + " decodeMillis=" + decodeTime);
+                        listener.onResponse(decoder.getFormat(), length, networkTime, decodeTime,
+                                count);
+
+                        // Return the list of {@link Earthquake}s
+                        return earthquakes;
+                    }
+                });
+    }
 
     /**
      * Return a list of {@link Earthquake} objects that has been built up from
@@ -103,9 +286,21 @@ public final class QueryUtils {
                 // Getting url from properties with key "url"
                 String url = properties.getString("url");
 
-                // Create a new Earthquake object with magnitude,location and time
+                // Getting the epicenter from geometry, its coordinates are
+                // [longitude, latitude, depth]. Left unknown if there is no geometry.
+                double latitude = Double.NaN;
+                double longitude = Double.NaN;
+                JSONObject geometry = currentEarthquake.optJSONObject("geometry");
+                JSONArray coordinates = geometry == null ? null : geometry.optJSONArray("coordinates");
+                if (coordinates != null && coordinates.length() >= 2) {
+                    longitude = coordinates.optDouble(0, Double.NaN);
+                    latitude = coordinates.optDouble(1, Double.NaN);
+                }
+
+                // Create a new Earthquake object with magnitude,location,time and epicenter
                 // from the JSON Response
-                Earthquake earthquake = new Earthquake(magnitude, location, time, url);
+                Earthquake earthquake = new Earthquake(magnitude, location, time, url,
+                        latitude, longitude);
 
                 // Add the earthquake object to the ArrayList
                 earthquakes.add(earthquake);
@@ -124,50 +319,6 @@ public final class QueryUtils {
         return earthquakes;
     }
 
-    /**
-     * Make an HTTP request to the given URL and return a String as the response.
-     */
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
-
-        // If the URL is null, then return early.
-        if (url == null) {
-            return jsonResponse;
-        }
-
-
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
-        try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setReadTimeout(10000 /* milliseconds */);
-            urlConnection.setConnectTimeout(15000 /* milliseconds */);
-            urlConnection.connect();
-
-            // if the Http request was successful i.e. response code 200
-            // then read the input stream and parse the response
-            if(urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
-            }
-            else {
-                Log.e(LOG_TAG, "Error Response Code: " + urlConnection.getResponseCode());
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Problem retrieving the earthquake JSON results" , e);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (inputStream != null) {
-                // function must handle java.io.IOException here
-                inputStream.close();
-            }
-        }
-        return jsonResponse;
-    }
-
     /**
      *
      * @param StringUrl = USGS_REQUEST_URL
@@ -184,24 +335,6 @@ public final class QueryUtils {
         return url;
     }
 
-    /** Converts {@Link InputStream} into String which contains
-     * whole jsonResponse from the server
-     */
-
-    private static String readFromStream(InputStream inputStream) throws IOException{
-        StringBuilder output = new StringBuilder();
-
-        if (inputStream != null) {
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-            BufferedReader reader = new BufferedReader(inputStreamReader);
-            String line = reader.readLine();
-            while (line != null) {
-                output.append(line);
-                line = reader.readLine();
-            }
-        }
-        return output.toString();
-    }
 
 
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package com.example.android.quakereport;
 
 import android.content.SharedPreferences;
+import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.TextUtils;
+import android.widget.Toast;
+
+import java.util.List;
 
 
 public class SettingsActivity extends AppCompatActivity {
@@ -32,10 +37,59 @@ public class SettingsActivity extends AppCompatActivity {
 
             Preference noOfEarthquake = findPreference(getString(R.string.setting_min_noOfEarthquake_key));
             bindPreferenceSummaryToValue(noOfEarthquake);
+
+            Preference format = findPreference(getString(R.string.settings_format_key));
+            bindPreferenceSummaryToValue(format);
+
+            // The alert rules live in AlertNotifier's preferences, not in the default ones
+            EditTextPreference alertRules = (EditTextPreference) findPreference(
+                    getString(R.string.settings_alert_rules_key));
+            String rulesText = AlertNotifier.formatRules(AlertNotifier.getRules(getActivity()));
+            alertRules.setText(rulesText);
+            alertRules.setOnPreferenceChangeListener(this);
+            setAlertRulesSummary(alertRules, rulesText);
         }
 
         @Override
         public boolean onPreferenceChange(Preference preference, Object value) {
+            if (getString(R.string.settings_alert_rules_key).equals(preference.getKey())) {
+                return onAlertRulesChange(preference, value.toString());
+            }
+
+            setPreferenceSummary(preference, value);
+
+            // Start loading the new query while the user is still on this screen
+            EarthquakePrefetcher.getInstance(getActivity()).schedule();
+            return true;
+        }
+
+        /**
+         * Saves the typed alert rules, or keeps the old ones if the text is not valid
+         */
+        private boolean onAlertRulesChange(Preference preference, String text) {
+            List<AlertRule> rules = AlertNotifier.parseRules(text);
+            if (rules == null) {
+                Toast.makeText(getActivity(), R.string.settings_alert_rules_invalid,
+                        Toast.LENGTH_LONG).show();
+                return false;
+            }
+            AlertNotifier.setRules(getActivity(), rules);
+            setAlertRulesSummary(preference, AlertNotifier.formatRules(rules));
+            return true;
+        }
+
+        private void setAlertRulesSummary(Preference preference, String rulesText) {
+            if (TextUtils.isEmpty(rulesText)) {
+                preference.setSummary(getString(R.string.settings_alert_rules_none));
+            } else {
+                preference.setSummary(rulesText);
+            }
+        }
+
+        /**
+         * Function to show the given value as the preference's summary
+         */
+        private void setPreferenceSummary(Preference preference, Object value) {
             String stringValue = value.toString();
             if (preference instanceof ListPreference) {
                 ListPreference listPreference = (ListPreference) preference;
@@ -47,7 +101,6 @@ public class SettingsActivity extends AppCompatActivity {
             } else {
                 preference.setSummary(stringValue);
             }
-            return true;
         }
 
         /**
@@ -58,7 +111,7 @@ public class SettingsActivity extends AppCompatActivity {
             preference.setOnPreferenceChangeListener(this);
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(preference.getContext());
             String preferenceString = preferences.getString(preference.getKey(), "");
-            onPreferenceChange(preference, preferenceString);
+            setPreferenceSummary(preference, preferenceString);
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.example.android.quakereport;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Markers along the cold start path, from EarthquakeActivity.onCreate to the first list
+ * shown. Sections appear in systrace on API 18+, and while starting up each section and
+ * mark is also logged with its time since the first marker, so two builds can be
+ * compared with "adb logcat -s StartupTrace".
+ *
+ * A section has to begin and end on the same thread.
+ */
+public final class StartupTrace {
+
+    private static final String LOG_TAG = StartupTrace.class.getSimpleName();
+
+    /* Uptime of the first marker, -1 before it */
+    private static long sStartMillis = -1;
+
+    /* True once the first content is shown, later markers are not logged */
+    private static boolean sFinished;
+
+    /* Start uptime of the open sections */
+    private static final Map<String, Long> sSections = new HashMap<>();
+
+    /**
+     * This class is only meant to hold static methods
+     */
+    private StartupTrace() {
+    }
+
+    /**
+     * Opens a section
+     */
+    public static void begin(String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(section);
+        }
+        synchronized (StartupTrace.class) {
+            if (!sFinished) {
+                sSections.put(section, now());
+            }
+        }
+    }
+
+    /**
+     * Closes the section and logs how long it took
+     */
+    public static void end(String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        synchronized (StartupTrace.class) {
+            Long start = sSections.remove(section);
+            if (start != null && !sFinished) {
+                long end = now();
+                Log.i(LOG_TAG, section + " took " + (end - start) + " ms, done at +"
+                        + (end - sStartMillis) + " ms");
+            }
+        }
+    }
+
+    /**
+     * Logs a point in time, like the moment a request is sent
+     */
+    public static synchronized void mark(String event) {
+        if (!sFinished) {
+            Log.i(LOG_TAG, event + " at +" + (now() - sStartMillis) + " ms");
+        }
+    }
+
+    /**
+     * Marks the end of the startup when the first content is shown, and reports it to
+     * the system so "Fully drawn" shows up next to "Displayed" in the ActivityManager log
+     */
+    public static void finish(Activity activity) {
+        synchronized (StartupTrace.class) {
+            if (sFinished) {
+                return;
+            }
+            Log.i(LOG_TAG, "First content shown at +" + (now() - sStartMillis) + " ms");
+            sFinished = true;
+            sSections.clear();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            activity.reportFullyDrawn();
+        }
+    }
+
+    /**
+     * Returns the current uptime, starting the clock on the first call
+     */
+    private static long now() {
+        long now = SystemClock.uptimeMillis();
+        if (sStartMillis < 0) {
+            sStartMillis = now;
+        }
+        return now;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the grid of {@link AlertRuleEngine} against checking every rule against every
+ * event, with areas around the poles and across the antimeridian
+ */
+public class AlertRuleEngineTest {
+
+    /**
+     * Returns the ids of the rules the event triggers, found by checking every rule
+     */
+    private static List<String> bruteForce(List<AlertRule> rules, Earthquake earthquake) {
+        List<String> ids = new ArrayList<>();
+        for (AlertRule rule : rules) {
+            if (earthquake.getmMagnitude() < rule.getmMinMagnitude()) {
+                continue;
+            }
+            if (rule.isGlobal() || (earthquake.hasCoordinates()
+                    && AlertRuleEngine.distanceKm(rule.getmLatitude(), rule.getmLongitude(),
+                    earthquake.getmLatitude(), earthquake.getmLongitude())
+                    <= rule.getmRadiusKm())) {
+                ids.add(rule.getmId());
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> ids(List<AlertRule> rules) {
+        List<String> ids = new ArrayList<>();
+        for (AlertRule rule : rules) {
+            ids.add(rule.getmId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static Earthquake earthquake(double magnitude, double latitude, double longitude) {
+        return new Earthquake(magnitude, "somewhere", 0,
+                "https://earthquake.usgs.gov/earthquakes/eventpage/" + latitude + "," + longitude,
+                latitude, longitude);
+    }
+
+    private static double magnitude(Random random) {
+        return Math.round(random.nextDouble() * 90) / 10.0;
+    }
+
+    /**
+     * Returns a latitude, half of them within a few degrees of a pole
+     */
+    private static double latitude(Random random) {
+        if (random.nextBoolean()) {
+            return random.nextDouble() * 180 - 90;
+        }
+        double nearPole = 90 - random.nextDouble() * 4;
+        return random.nextBoolean() ? nearPole : -nearPole;
+    }
+
+    /**
+     * Returns a longitude in [-180, 180], half of them within a few degrees of the antimeridian
+     */
+    private static double longitude(Random random) {
+        if (random.nextBoolean()) {
+            return random.nextDouble() * 360 - 180;
+        }
+        double nearAntimeridian = 180 - random.nextDouble() * 4;
+        return random.nextBoolean() ? nearAntimeridian : -nearAntimeridian;
+    }
+
+    private static List<AlertRule> randomRules(Random random, int count) {
+        double[] radii = {5, 50, 300, 1000, 3000, 12000};
+        List<AlertRule> rules = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+                rules.add(new AlertRule("global" + i, magnitude(random)));
+            } else {
+                rules.add(new AlertRule("rule" + i, magnitude(random), latitude(random),
+                        longitude(random), radii[random.nextInt(radii.length)]
+                        * (0.5 + random.nextDouble())));
+            }
+        }
+        return rules;
+    }
+
+    @Test
+    public void matchesLikeCheckingEveryRule() {
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            List<AlertRule> rules = randomRules(random, 200);
+            AlertRuleEngine engine = new AlertRuleEngine(rules);
+            for (int i = 0; i < 2000; i++) {
+                Earthquake earthquake = earthquake(magnitude(random), latitude(random),
+                        longitude(random));
+                assertEquals(earthquake.getmLatitude() + "," + earthquake.getmLongitude(),
+                        bruteForce(rules, earthquake), ids(engine.match(earthquake)));
+            }
+        }
+    }
+
+    @Test
+    public void areasAroundAPoleReachEveryLongitude() {
+        List<AlertRule> rules = Arrays.asList(
+                new AlertRule("north", 4, 88, 10, 500),
+                new AlertRule("south", 4, -87.5, -150, 600));
+        AlertRuleEngine engine = new AlertRuleEngine(rules);
+
+        for (double longitude = -180; longitude <= 180; longitude += 7.5) {
+            for (double latitude : new double[]{90, 89.5, 87, -90, -89.5, -87}) {
+                Earthquake earthquake = earthquake(5, latitude, longitude);
+                assertEquals(latitude + "," + longitude,
+                        bruteForce(rules, earthquake), ids(engine.match(earthquake)));
+            }
+        }
+        assertEquals(Collections.singletonList("north"),
+                ids(engine.match(earthquake(5, 89.9, -170))));
+        assertEquals(Collections.singletonList("south"),
+                ids(engine.match(earthquake(5, -89.9, 30))));
+    }
+
+    @Test
+    public void areasAcrossTheAntimeridianWrapAround() {
+        List<AlertRule> rules = Arrays.asList(
+                new AlertRule("east", 4, -17, 179.6, 200),
+                new AlertRule("west", 4, 52, -179.8, 150));
+        AlertRuleEngine engine = new AlertRuleEngine(rules);
+
+        for (double longitude = 170; longitude <= 190; longitude += 0.25) {
+            double wrapped = longitude > 180 ? longitude - 360 : longitude;
+            for (double latitude : new double[]{-18.5, -17, -15.5, 51, 52, 53}) {
+                Earthquake earthquake = earthquake(5, latitude, wrapped);
+                assertEquals(latitude + "," + wrapped,
+                        bruteForce(rules, earthquake), ids(engine.match(earthquake)));
+            }
+        }
+        assertEquals(Collections.singletonList("east"),
+                ids(engine.match(earthquake(5, -17, -179.5))));
+        assertEquals(Collections.singletonList("west"),
+                ids(engine.match(earthquake(5, 52, 179.5))));
+    }
+
+    @Test
+    public void thresholdsAndMissingCoordinates() {
+        List<AlertRule> rules = Arrays.asList(
+                new AlertRule("global", 6),
+                new AlertRule("tokyo", 5, 35.68, 139.69, 300),
+                new AlertRule("tokyoStrong", 5.5, 35.68, 139.69, 300));
+        AlertRuleEngine engine = new AlertRuleEngine(rules);
+
+        assertEquals(Collections.singletonList("tokyo"),
+                ids(engine.match(earthquake(5, 35.7, 139.7))));
+        assertEquals(Arrays.asList("global", "tokyo", "tokyoStrong"),
+                ids(engine.match(earthquake(6, 35.7, 139.7))));
+        assertEquals(Collections.singletonList("global"),
+                ids(engine.match(new Earthquake(7, "unknown", 0, "no-coordinates"))));
+        assertTrue(engine.match(earthquake(4.9, 35.7, 139.7)).isEmpty());
+    }
+
+    @Test
+    public void evaluateAlertsEachEarthquakeOnce() {
+        AlertRuleEngine engine = new AlertRuleEngine(
+                Collections.singletonList(new AlertRule("global", 5)));
+        List<Earthquake> earthquakes = Arrays.asList(
+                earthquake(5.5, 10, 10), earthquake(4, 20, 20), earthquake(6, 30, 30));
+        Set<String> notifiedIds = new HashSet<>();
+
+        assertEquals(2, engine.evaluate(earthquakes, notifiedIds).size());
+        assertEquals(2, notifiedIds.size());
+        assertTrue(engine.evaluate(earthquakes, notifiedIds).isEmpty());
+    }
+
+    @Test
+    public void distancesAcrossThePolesAndTheAntimeridian() {
+        double degreeKm = Math.PI * 6371 / 180;
+        assertEquals(180 * degreeKm, AlertRuleEngine.distanceKm(90, 0, -90, 0), 1e-6);
+        assertEquals(2 * degreeKm, AlertRuleEngine.distanceKm(89, 0, 89, 180), 1e-6);
+        assertEquals(0.5 * degreeKm, AlertRuleEngine.distanceKm(0, 179.75, 0, -179.75), 1e-6);
+    }
+}
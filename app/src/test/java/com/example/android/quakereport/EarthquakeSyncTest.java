@@ -0,0 +1,182 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the batched requests of {@link EarthquakeSync} answer every saved filter
+ * exactly like a request of its own would
+ */
+public class EarthquakeSyncTest {
+
+    private static String query(String format, int limit, String minMagnitude, String orderBy) {
+        return EarthquakeActivity.USGS_REQUEST_URL + "?format=" + format + "&limit=" + limit
+                + "&minmag=" + minMagnitude + "&orderby=" + orderBy;
+    }
+
+    /**
+     * Answers a query like the USGS server: the events of at least the minimum magnitude,
+     * in the order asked for, up to the limit
+     */
+    private static List<Earthquake> serverAnswer(List<Earthquake> events, String url) {
+        final String orderBy = EarthquakeSync.getQueryParameter(url, "orderby");
+        double minMagnitude = Double.parseDouble(EarthquakeSync.getQueryParameter(url, "minmag"));
+        int limit = Integer.parseInt(EarthquakeSync.getQueryParameter(url, "limit"));
+
+        List<Earthquake> matching = new ArrayList<>();
+        for (Earthquake earthquake : events) {
+            if (earthquake.getmMagnitude() >= minMagnitude) {
+                matching.add(earthquake);
+            }
+        }
+        Collections.sort(matching, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                if ("magnitude".equals(orderBy)) {
+                    return Double.compare(b.getmMagnitude(), a.getmMagnitude());
+                }
+                return Long.compare(b.getmTimeInMilliseconds(), a.getmTimeInMilliseconds());
+            }
+        });
+        return matching.subList(0, Math.min(limit, matching.size()));
+    }
+
+    private static List<Earthquake> randomEvents(Random random, int count) {
+        List<Earthquake> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double magnitude = Math.round(random.nextDouble() * 80) / 10.0;
+            events.add(new Earthquake(magnitude, "place " + i, 1000000L - i * 60000L,
+                    "https://earthquake.usgs.gov/earthquakes/eventpage/" + i));
+        }
+        return events;
+    }
+
+    @Test
+    public void magnitudeOrderedQueriesShareARequest() {
+        String small = query("geojson", 10, "4.0", "magnitude");
+        String large = query("geojson", 50, "2.5", "magnitude");
+
+        Map<String, List<String>> batches = EarthquakeSync.batchQueries(Arrays.asList(small, large));
+
+        assertEquals(1, batches.size());
+        String batchUrl = batches.keySet().iterator().next();
+        assertEquals("50", EarthquakeSync.getQueryParameter(batchUrl, "limit"));
+        assertEquals("2.5", EarthquakeSync.getQueryParameter(batchUrl, "minmag"));
+        assertEquals("magnitude", EarthquakeSync.getQueryParameter(batchUrl, "orderby"));
+        assertEquals("geojson", EarthquakeSync.getQueryParameter(batchUrl, "format"));
+        assertEquals(Arrays.asList(small, large), batches.get(batchUrl));
+    }
+
+    @Test
+    public void timeOrderedQueriesOnlyShareWithTheSameMinimumMagnitude() {
+        String a = query("geojson", 10, "4.0", "time");
+        String b = query("geojson", 30, "4.0", "time");
+        String c = query("geojson", 10, "2.0", "time");
+
+        Map<String, List<String>> batches = EarthquakeSync.batchQueries(Arrays.asList(a, b, c));
+
+        assertEquals(2, batches.size());
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            if (batch.getValue().size() == 2) {
+                assertEquals(Arrays.asList(a, b), batch.getValue());
+                assertEquals("30", EarthquakeSync.getQueryParameter(batch.getKey(), "limit"));
+            } else {
+                assertEquals(Collections.singletonList(c), batch.getValue());
+                assertEquals(c, batch.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void formatsAreNotMixed() {
+        String geojson = query("geojson", 10, "4.0", "magnitude");
+        String csv = query("csv", 10, "3.0", "magnitude");
+
+        Map<String, List<String>> batches = EarthquakeSync.batchQueries(Arrays.asList(geojson, csv));
+
+        assertEquals(2, batches.size());
+        assertTrue(batches.containsKey(geojson));
+        assertTrue(batches.containsKey(csv));
+    }
+
+    @Test
+    public void unreadableQueriesGetARequestOfTheirOwn() {
+        String unreadable = EarthquakeActivity.USGS_REQUEST_URL
+                + "?format=geojson&limit=many&minmag=4.0&orderby=magnitude";
+        String other = query("geojson", 10, "4.0", "magnitude");
+
+        Map<String, List<String>> batches =
+                EarthquakeSync.batchQueries(Arrays.asList(unreadable, other));
+
+        assertEquals(Collections.singletonList(unreadable), batches.get(unreadable));
+        assertEquals(Collections.singletonList(other), batches.get(other));
+
+        List<Earthquake> events = randomEvents(new Random(1), 20);
+        assertSame(events, EarthquakeSync.filterForQuery(events, unreadable));
+    }
+
+    @Test
+    public void filterAppliesMinimumMagnitudeAndLimitInOrder() {
+        List<Earthquake> events = Arrays.asList(
+                new Earthquake(6.1, "a", 5, "a"),
+                new Earthquake(3.9, "b", 4, "b"),
+                new Earthquake(4.0, "c", 3, "c"),
+                new Earthquake(5.2, "d", 2, "d"),
+                new Earthquake(4.5, "e", 1, "e"));
+
+        List<Earthquake> result =
+                EarthquakeSync.filterForQuery(events, query("geojson", 3, "4.0", "time"));
+
+        assertEquals(Arrays.asList(events.get(0), events.get(2), events.get(3)), result);
+    }
+
+    @Test
+    public void batchedAnswersMatchSeparateRequests() {
+        Random random = new Random(42);
+        String[] orders = {"magnitude", "time"};
+        String[] magnitudes = {"2.5", "3.0", "4.5"};
+        for (int round = 0; round < 200; round++) {
+            List<Earthquake> events = randomEvents(random, 1 + random.nextInt(300));
+            List<String> urls = new ArrayList<>();
+            for (int i = 1 + random.nextInt(5); i > 0; i--) {
+                urls.add(query("geojson", 1 + random.nextInt(100),
+                        magnitudes[random.nextInt(magnitudes.length)],
+                        orders[random.nextInt(orders.length)]));
+            }
+
+            Map<String, List<String>> batches = EarthquakeSync.batchQueries(urls);
+            int answered = 0;
+            for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                List<Earthquake> batchAnswer = serverAnswer(events, batch.getKey());
+                for (String url : batch.getValue()) {
+                    assertEquals(url, serverAnswer(events, url),
+                            EarthquakeSync.filterForQuery(batchAnswer, url));
+                    answered++;
+                }
+            }
+            assertEquals(urls.size(), answered);
+        }
+    }
+
+    @Test
+    public void queryParametersAreDecoded() {
+        String url = "https://example.com/query?place=San%20Jos%C3%A9&minmag=2.5#top";
+
+        assertEquals("San Jos\u00e9", EarthquakeSync.getQueryParameter(url, "place"));
+        assertEquals("2.5", EarthquakeSync.getQueryParameter(url, "minmag"));
+        assertNull(EarthquakeSync.getQueryParameter(url, "limit"));
+        assertNull(EarthquakeSync.getQueryParameter("https://example.com/query", "limit"));
+    }
+}